@@ -0,0 +1,68 @@
+package rm.chat.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+
+/**
+ * Sending a chat message to a room of a given size, and encoding one for a
+ * single client. Queued frames are thrown away by {@link DrainTransport}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int users;
+
+	// Characters of chat text in each message
+	@Param({ "16", "256", "4096" })
+	public int length;
+
+	private Chatroom room;
+	private RemoteClient client;
+	private Message message;
+
+	@Setup
+	public void setup() throws IOException {
+		room = new Chatroom("bench");
+		for (int i = 0; i < users; i++) {
+			client = DrainTransport.client("user" + i);
+			room.addUser(client);
+		}
+
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length)
+			text.append("lorem ipsum dolor sit amet ");
+		text.setLength(length);
+		message = new Message(MessageType.MESSAGE, "user0", text.toString());
+	}
+
+	@Benchmark
+	public boolean broadcast() throws IOException {
+		return room.broadcast(message);
+	}
+
+	@Benchmark
+	public boolean sendMessage() throws IOException {
+		return client.sendMessage(message);
+	}
+}
@@ -0,0 +1,62 @@
+package rm.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rm.chat.shared.Message;
+
+/**
+ * Splitting a /priv command: in place with {@link CommandLine} against
+ * {@link Message#getArgs()} and joining the words back together.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandLineBenchmark {
+
+	// Characters of text after the nick
+	@Param({ "16", "256", "4096" })
+	public int length;
+
+	private String command;
+	private CommandLine line;
+
+	@Setup
+	public void setup() {
+		StringBuilder text = new StringBuilder("/priv bob ");
+		while (text.length() < length + 10)
+			text.append("lorem ipsum dolor sit amet ");
+		text.setLength(length + 10);
+		command = text.toString();
+		line = new CommandLine();
+	}
+
+	@Benchmark
+	public String commandLine() {
+		line.parse(command);
+		return line.isCommand("/priv") ? line.rest(1) : null;
+	}
+
+	@Benchmark
+	public String split() {
+		String[] args = new Message(command).getArgs();
+		StringBuilder body = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+			body.append(args[i] + " ");
+		return body.toString();
+	}
+}
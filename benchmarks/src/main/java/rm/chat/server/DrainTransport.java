@@ -0,0 +1,33 @@
+package rm.chat.server;
+
+/**
+ * A transport that throws away whatever is queued, so benchmarks measure
+ * the work of queueing frames and not of writing them.
+ */
+class DrainTransport implements Transport {
+
+	@Override
+	public void scheduleFlush(RemoteClient client) {
+		Frame frame;
+		while ((frame = client.getOutbound().poll()) != null)
+			frame.release();
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		task.run();
+	}
+
+	@Override
+	public void deregister(RemoteClient client) {
+	}
+
+	/**
+	 * A client that isn't connected to anything, named and in no room.
+	 */
+	static RemoteClient client(String nick) {
+		RemoteClient client = new RemoteClient(new DrainTransport(), null, null);
+		client.setNick(nick);
+		return client;
+	}
+}
@@ -0,0 +1,74 @@
+package rm.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up and renaming users in a {@link ClientManager} holding a given
+ * number of nicks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+	@Param({ "100", "10000" })
+	public int nicks;
+
+	private ClientManager clients;
+	private String[] names;
+	private RemoteClient renamed;
+	private int next;
+	private boolean flip;
+
+	@Setup
+	public void setup() {
+		clients = new ClientManager();
+		names = new String[nicks];
+		for (int i = 0; i < nicks; i++) {
+			RemoteClient client = DrainTransport.client("");
+			clients.add(client);
+			names[i] = "user" + i;
+			clients.setUsername(client, names[i]);
+		}
+		renamed = DrainTransport.client("");
+		clients.add(renamed);
+		clients.setUsername(renamed, "renamed-a");
+	}
+
+	@Benchmark
+	public RemoteClient getClientByName() {
+		next = next + 1 == names.length ? 0 : next + 1;
+		return clients.getClientByName(names[next]);
+	}
+
+	@Benchmark
+	public boolean getClientByNameMissing() {
+		return clients.getClientByName("nobody") == null;
+	}
+
+	@Benchmark
+	public boolean setUsername() {
+		flip = !flip;
+		return clients.setUsername(renamed, flip ? "renamed-b" : "renamed-a");
+	}
+
+	@Benchmark
+	public boolean setUsernameTaken() {
+		return clients.setUsername(renamed, names[0]);
+	}
+}
@@ -0,0 +1,68 @@
+package rm.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rescheduling a timeout in a {@link TimerWheel} already holding a given
+ * number of them, spread over a minute as idle timeouts would be.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerWheelBenchmark {
+
+	private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+	private static final class Noop extends TimerWheel.Timeout {
+		@Override
+		protected void expire(long now) {
+		}
+	}
+
+	@Param({ "1000", "1000000" })
+	public int armed;
+
+	private TimerWheel wheel;
+	private Noop[] timeouts;
+	private long start;
+	private int next;
+
+	@Setup
+	public void setup() {
+		wheel = new TimerWheel(512, TimeUnit.MILLISECONDS.toNanos(100));
+		timeouts = new Noop[armed];
+		start = System.nanoTime();
+		for (int i = 0; i < armed; i++) {
+			timeouts[i] = new Noop();
+			wheel.schedule(timeouts[i], start + MINUTE * i / armed);
+		}
+	}
+
+	@Benchmark
+	public void reschedule() {
+		next = next + 1 == timeouts.length ? 0 : next + 1;
+		wheel.schedule(timeouts[next], start + MINUTE + next);
+	}
+
+	@Benchmark
+	public void cancelAndSchedule() {
+		next = next + 1 == timeouts.length ? 0 : next + 1;
+		wheel.cancel(timeouts[next]);
+		wheel.schedule(timeouts[next], start + MINUTE - next);
+	}
+}
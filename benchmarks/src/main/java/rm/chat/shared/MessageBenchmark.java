@@ -0,0 +1,68 @@
+package rm.chat.shared;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a line, in both directions: what the server does with each line a
+ * client sends, and what the client does with each line the server sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	// Characters of chat text in each line
+	@Param({ "16", "256", "4096" })
+	public int length;
+
+	private String chat;
+	private String command;
+	private String serverLine;
+
+	@Setup
+	public void setup() {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length)
+			text.append("lorem ipsum dolor sit amet ");
+		text.setLength(length);
+
+		chat = text.toString();
+		command = "/priv bob " + chat;
+		serverLine = "MESSAGE alice " + chat;
+	}
+
+	@Benchmark
+	public boolean isCommandChat() {
+		return new Message(chat).isCommand();
+	}
+
+	@Benchmark
+	public boolean isCommand() {
+		return new Message(command).isCommand();
+	}
+
+	@Benchmark
+	public String[] getArgs() {
+		return new Message(command).getArgs();
+	}
+
+	@Benchmark
+	public String parse() {
+		return Message.parse(serverLine);
+	}
+}
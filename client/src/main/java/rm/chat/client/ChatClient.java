@@ -4,11 +4,15 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 
 import rm.chat.client.ChatListener;
+import rm.chat.shared.BinaryCodec;
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
 
 public class ChatClient {
 
@@ -25,11 +29,19 @@ public class ChatClient {
     private ChatListener listener;
     private SocketChannel channel;
 
+    // Speak the binary protocol instead of text
+    private boolean binary = Boolean.getBoolean("rm.chat.binary");
+
+    // Lines of chat kept in the window, and how often it is updated
+    private int scrollback = Integer.getInteger("rm.chat.scrollback", 5000);
+    private int fps = Integer.getInteger("rm.chat.fps", 30);
+    private ChatView view;
+
     
     // Método a usar para acrescentar uma string à caixa de texto
     // * NÃO MODIFICAR *
     public void printMessage(final String message) {
-        chatArea.append(message);
+        view.append(message);
     }
 
     
@@ -65,31 +77,25 @@ public class ChatClient {
         // construtor, deve ser colocado aqui
         this.server = server;
         this.port = port;
+        this.view = new ChatView(chatArea, scrollback, fps);
     }
 
     private void connectToServer() throws IOException{
-        // Create a SocketChannel
-        channel = SocketChannel.open();
-
-        // Set it to non-blocking
-        channel.configureBlocking(false);
-
-        // Connect to the server
+        // Connect to the server. The channel stays blocking, so the
+        // listener sleeps in read until the server sends something
         InetSocketAddress isa = new InetSocketAddress(server, port);
-        channel.connect(isa);
-
-        // Wait for connection
-        while(!channel.finishConnect()) {
-            try {
-                System.out.println("...");
-                Thread.sleep(200);
-            } catch (Exception e) {
-                return;
+        channel = SocketChannel.open(isa);
+        
+        if (binary) {
+            // Ask the server for the binary protocol
+            ByteBuffer hello = ByteBuffer.wrap(new byte[] { BinaryCodec.HELLO });
+            while (hello.hasRemaining()) {
+                channel.write(hello);
             }
         }
-        
+
         // Start listening for server messages
-        this.listener = new ChatListener(channel, this);
+        this.listener = new ChatListener(channel, this, binary);
         Thread thread = new Thread(listener);
         thread.start();
 
@@ -101,7 +107,10 @@ public class ChatClient {
     // na caixa de entrada
     public void newMessage(String message) throws IOException {
         // PREENCHER AQUI com código que envia a mensagem ao servidor
-    	ByteBuffer buffer = ByteBuffer.wrap(message.getBytes());
+    	// The server reads newline terminated lines, or binary frames
+    	ByteBuffer buffer = binary
+    		? BinaryCodec.encode(new Message(MessageType.MESSAGE, "", message))
+    		: ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
     	try {
     		channel.write(buffer);
             while(buffer.hasRemaining()) {
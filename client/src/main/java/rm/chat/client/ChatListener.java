@@ -0,0 +1,125 @@
+package rm.chat.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import rm.chat.shared.*;
+
+/**
+ * Runnable class to listen for messages from the server.
+ *
+ * Reads block on the channel, so an idle client uses no CPU. Lines are
+ * reassembled across reads, and everything decoded from one read goes to
+ * the window in a single {@link ChatClient#printMessage(String)}. The
+ * server's pings are answered here.
+ */
+public class ChatListener implements Runnable {
+	
+	private SocketChannel channel;
+	private ChatClient client;
+	private BinaryCodec codec;
+	private LineDecoder lines;
+
+	// Longest line or frame accepted from the server
+	private static final int MAX_LENGTH = 1 << 20;
+	
+	public ChatListener(SocketChannel channel, ChatClient client) {
+		this(channel, client, false);
+	}
+
+	/**
+	 * @param channel - connected, in blocking mode
+	 * @param binary - True if the connection speaks the binary protocol
+	 */
+	public ChatListener(SocketChannel channel, ChatClient client, boolean binary) {
+		this.channel = channel;
+		this.client = client;
+		if (binary)
+			this.codec = new BinaryCodec(MAX_LENGTH);
+		else
+			this.lines = new LineDecoder(MAX_LENGTH);
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocate(16384);
+		StringBuilder batch = new StringBuilder();
+		try {
+			while (true) {
+				buffer.clear();
+				if (channel.read(buffer) < 0)
+					break;
+				buffer.flip();
+
+				if (codec != null)
+					decodeFrames(buffer, batch);
+				else
+					decodeLines(buffer, batch);
+
+				if (batch.length() > 0) {
+					client.printMessage(batch.toString());
+					batch.setLength(0);
+				}
+			}
+			System.out.println("Connection closed by the server");
+		} catch(IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	private void decodeFrames(ByteBuffer buffer, StringBuilder batch) throws IOException {
+		codec.feed(buffer);
+		Message message;
+		while ((message = codec.next()) != null) {
+			if (message.getType() == Message.MessageType.PING) {
+				pong(BinaryCodec.encode(new Message(Message.MessageType.MESSAGE, "", "")));
+				continue;
+			}
+			String parsed = message.display();
+			if (parsed != null)
+				batch.append(parsed);
+		}
+	}
+
+	private void decodeLines(ByteBuffer buffer, StringBuilder batch) {
+		// The server terminates every message with a newline
+		lines.feed(buffer);
+		while (true) {
+			String line;
+			try {
+				line = lines.nextLine();
+			} catch (LineDecoder.LineTooLongException e) {
+				System.out.println(e.getMessage());
+				continue;
+			}
+			if (line == null)
+				break;
+			if (line.length() == 0)
+				continue;
+
+			Message message = Message.fromLine(line);
+			if (message.getType() == Message.MessageType.PING) {
+				pong(ByteBuffer.wrap(new byte[] { '\n' }));
+				continue;
+			}
+			String parsed = message.display();
+			if (parsed != null)
+				batch.append(parsed);
+		}
+	}
+
+	/**
+	 * Answer the server's PING. The server ignores empty lines, but counts
+	 * them as a sign of life.
+	 */
+	private void pong(ByteBuffer answer) {
+		try {
+			while (answer.hasRemaining())
+				channel.write(answer);
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+}
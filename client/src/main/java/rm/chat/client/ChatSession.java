@@ -0,0 +1,377 @@
+package rm.chat.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import rm.chat.shared.BinaryCodec;
+import rm.chat.shared.LineDecoder;
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+
+/**
+ * A connection to the chat server for programs, without a window.
+ *
+ * Commands can be sent from any thread, without waiting for the previous
+ * one's result. The server answers every command with OK or ERROR, in the
+ * order it received them, so each command gets a future that the matching
+ * answer completes with true or false. /bye is answered with BYE instead.
+ * If the connection is lost, or the server says BYE on its own, such as
+ * when it drops an idle or slow session, the futures still waiting fail
+ * with an IOException.
+ *
+ * Lines longer than the server accepts are refused before they are sent,
+ * since the server would skip them with an ERROR that no command waits for.
+ *
+ * Pings from the server are answered with an empty line. Everything else
+ * the server sends goes to the registered listeners. Both
+ * futures and listeners are completed on the session's reader thread, so
+ * callbacks should not block.
+ *
+ * Writes from concurrent callers are batched: whoever finds the connection
+ * idle writes out what the others queued meanwhile, in one call.
+ */
+public class ChatSession implements Closeable {
+
+	// Longest line or frame accepted from the server
+	private static final int MAX_LENGTH = 1 << 20;
+
+	// Longest line or frame the server accepts, in bytes, as set on the
+	// server by the same property
+	private static final int MAX_LINE_LENGTH = Integer.getInteger("rm.chat.maxLineLength", 16384);
+
+	private final SocketChannel channel;
+	private final boolean binary;
+	private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+
+	// Guarded by this: commands waiting for a result, in the order sent, and
+	// the bytes waiting to be written
+	private final ArrayDeque<CompletableFuture<Boolean>> results = new ArrayDeque<>();
+	private ByteBuffer outbox = ByteBuffer.allocate(8192);
+	private ByteBuffer spare = ByteBuffer.allocate(8192);
+	private boolean writing;
+	private IOException closed;
+
+	// The /bye waiting for the server's BYE, if one was sent
+	private CompletableFuture<Boolean> bye;
+
+	private ChatSession(SocketChannel channel, boolean binary) {
+		this.channel = channel;
+		this.binary = binary;
+	}
+
+	/**
+	 * Connect to a server.
+	 *
+	 * @param host
+	 * @param port
+	 * @param binary - True to speak the binary protocol
+	 * @return the session, already reading
+	 * @throws IOException If the connection fails
+	 */
+	public static ChatSession connect(String host, int port, boolean binary) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		ChatSession session = new ChatSession(channel, binary);
+
+		if (binary) {
+			// The server answers the hello with OK, like a command
+			synchronized (session) {
+				session.results.add(new CompletableFuture<Boolean>());
+				session.outbox.put(BinaryCodec.HELLO);
+			}
+			session.flush();
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				session.read();
+			}
+		}, "chat-session-reader");
+		thread.setDaemon(true);
+		thread.start();
+		return session;
+	}
+
+	public void addListener(MessageListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(MessageListener listener) {
+		listeners.remove(listener);
+	}
+
+	public CompletableFuture<Boolean> nick(String nick) {
+		return command("/nick " + nick);
+	}
+
+	public CompletableFuture<Boolean> join(String room) {
+		return command("/join " + room);
+	}
+
+	public CompletableFuture<Boolean> leave() {
+		return command("/leave");
+	}
+
+	public CompletableFuture<Boolean> priv(String to, String text) {
+		return command("/priv " + to + " " + text);
+	}
+
+	public CompletableFuture<Boolean> history(int n) {
+		return command("/history " + n);
+	}
+
+	public CompletableFuture<Boolean> bye() {
+		return command("/bye");
+	}
+
+	/**
+	 * Send a command.
+	 *
+	 * @param command - the whole line, starting with a single /
+	 * @return completed with true on OK and false on ERROR
+	 * @throws IllegalArgumentException If the line is longer than the
+	 * server accepts
+	 */
+	public CompletableFuture<Boolean> command(String command) {
+		if (command.length() < 2 || command.charAt(0) != '/' || command.charAt(1) == '/')
+			throw new IllegalArgumentException("Not a command: " + command);
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		send(command, result);
+		return result;
+	}
+
+	/**
+	 * Say something in the current room. The server doesn't answer chat,
+	 * so there is no result; a line starting with / is escaped. The server
+	 * trims lines before it looks for a command, so leading whitespace
+	 * doesn't count.
+	 *
+	 * @param text - the message
+	 * @throws IllegalArgumentException If the line is longer than the
+	 * server accepts
+	 */
+	public void say(String text) {
+		int start = 0;
+		while (start < text.length() && text.charAt(start) <= ' ')
+			start++;
+		if (start < text.length() && text.charAt(start) == '/')
+			text = text.substring(0, start) + "/" + text.substring(start);
+		send(text, null);
+	}
+
+	private void send(String text, CompletableFuture<Boolean> result) {
+		if (!binary && text.indexOf('\n') >= 0)
+			throw new IllegalArgumentException("Line break in a text protocol line");
+
+		Message message = null;
+		byte[] bytes = null;
+		int length;
+		if (binary) {
+			message = new Message(MessageType.MESSAGE, "", text);
+			length = BinaryCodec.encodedLength(message);
+			if (length - BinaryCodec.HEADER_LENGTH > MAX_LINE_LENGTH)
+				throw new IllegalArgumentException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+		} else {
+			bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+			length = bytes.length;
+			if (length - 1 > MAX_LINE_LENGTH)
+				throw new IllegalArgumentException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+		}
+
+		synchronized (this) {
+			if (closed != null) {
+				if (result != null)
+					result.completeExceptionally(closed);
+				return;
+			}
+			if (result != null) {
+				results.add(result);
+				if (text.equals("/bye"))
+					bye = result;
+			}
+
+			reserve(length);
+			if (binary)
+				BinaryCodec.encode(message, outbox);
+			else
+				outbox.put(bytes);
+
+			// Someone else is writing and will pick this up
+			if (writing)
+				return;
+		}
+		flush();
+	}
+
+	private void reserve(int length) {
+		if (outbox.remaining() >= length)
+			return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(outbox.capacity() * 2, outbox.position() + length));
+		outbox.flip();
+		bigger.put(outbox);
+		outbox = bigger;
+	}
+
+	/**
+	 * Write the outbox until it stays empty. Only one thread writes at a
+	 * time; the others leave their bytes in the outbox for it.
+	 */
+	private void flush() {
+		synchronized (this) {
+			if (writing)
+				return;
+			writing = true;
+		}
+
+		while (true) {
+			ByteBuffer batch;
+			synchronized (this) {
+				if (outbox.position() == 0 || closed != null) {
+					writing = false;
+					return;
+				}
+				batch = outbox;
+				outbox = spare;
+				outbox.clear();
+			}
+
+			batch.flip();
+			try {
+				while (batch.hasRemaining())
+					channel.write(batch);
+			} catch (IOException e) {
+				fail(e);
+			}
+
+			synchronized (this) {
+				spare = batch;
+			}
+		}
+	}
+
+	private void read() {
+		ByteBuffer buffer = ByteBuffer.allocate(16384);
+		BinaryCodec codec = binary ? new BinaryCodec(MAX_LENGTH) : null;
+		LineDecoder lines = binary ? null : new LineDecoder(MAX_LENGTH);
+		try {
+			while (true) {
+				buffer.clear();
+				if (channel.read(buffer) < 0)
+					break;
+				buffer.flip();
+
+				if (binary) {
+					codec.feed(buffer);
+					Message message;
+					while ((message = codec.next()) != null)
+						received(message);
+				} else {
+					lines.feed(buffer);
+					while (true) {
+						String line;
+						try {
+							line = lines.nextLine();
+						} catch (LineDecoder.LineTooLongException e) {
+							continue;
+						}
+						if (line == null)
+							break;
+						if (line.length() > 0)
+							received(Message.fromLine(line));
+					}
+				}
+			}
+			fail(new IOException("Connection closed by the server"));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void received(Message message) {
+		switch (message.getType()) {
+			case OK:
+				complete(true);
+				break;
+			case BYE:
+				closedByServer();
+				break;
+			case ERROR:
+				complete(false);
+				break;
+			case PING:
+				// The server is checking this session is still there
+				send("", null);
+				break;
+			default:
+				for (MessageListener listener : listeners)
+					listener.received(message);
+		}
+	}
+
+	private void complete(boolean result) {
+		CompletableFuture<Boolean> future;
+		synchronized (this) {
+			future = results.poll();
+		}
+		// An ERROR with nothing waiting is the server rejecting a line
+		if (future != null)
+			future.complete(result);
+	}
+
+	/**
+	 * The server is closing the session. That answers a /bye if one was
+	 * sent; every other command still waiting fails.
+	 */
+	private void closedByServer() {
+		CompletableFuture<Boolean> future;
+		synchronized (this) {
+			future = bye;
+			if (future != null)
+				results.remove(future);
+		}
+		if (future != null)
+			future.complete(true);
+		fail(new IOException("Disconnected by the server"));
+	}
+
+	/**
+	 * Close the connection and fail every command still waiting.
+	 */
+	private void fail(IOException e) {
+		ArrayDeque<CompletableFuture<Boolean>> waiting;
+		synchronized (this) {
+			if (closed != null)
+				return;
+			closed = e;
+			waiting = new ArrayDeque<>(results);
+			results.clear();
+		}
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+		for (CompletableFuture<Boolean> future : waiting)
+			future.completeExceptionally(e);
+	}
+
+	/**
+	 * Test if the connection is still open.
+	 */
+	public synchronized boolean isOpen() {
+		return closed == null;
+	}
+
+	@Override
+	public void close() {
+		fail(new IOException("Session closed"));
+	}
+}
@@ -0,0 +1,111 @@
+package rm.chat.client;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayDeque;
+
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * The chat text shown in the window, kept to a fixed number of lines.
+ *
+ * Text can be appended from any thread. It is collected and added to the
+ * text area on the event dispatch thread a fixed number of times a second,
+ * in one append, however many messages came in between. The oldest lines are
+ * then trimmed, so memory and the cost of each update stay bounded. If text
+ * comes in faster than the window shows it, lines that would be trimmed
+ * straight away are dropped before they reach the text area.
+ */
+public class ChatView {
+
+	private final JTextArea area;
+	private final int maxLines;
+	private final Timer timer;
+
+	// Text waiting for the next update, guarded by this
+	private final ArrayDeque<String> pending;
+	private int pendingLines;
+
+	/**
+	 * @param area - the text area to show the chat in
+	 * @param maxLines - most lines kept
+	 * @param fps - updates a second
+	 */
+	public ChatView(JTextArea area, int maxLines, int fps) {
+		this.area = area;
+		this.maxLines = Math.max(1, maxLines);
+		this.pending = new ArrayDeque<>();
+		this.timer = new Timer(1000 / Math.max(1, fps), new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				update();
+			}
+		});
+		this.timer.start();
+	}
+
+	private static int lines(String text) {
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n')
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Queue text for the next update. Safe to call from any thread.
+	 *
+	 * @param text - one or more newline terminated lines
+	 */
+	public synchronized void append(String text) {
+		pending.add(text);
+		pendingLines += lines(text);
+
+		// Whatever is above the last maxLines would be trimmed anyway
+		while (pending.size() > 1 && pendingLines - lines(pending.peekFirst()) >= maxLines)
+			pendingLines -= lines(pending.pollFirst());
+	}
+
+	private synchronized String takePending() {
+		if (pending.isEmpty())
+			return null;
+		StringBuilder text = new StringBuilder();
+		for (String chunk : pending)
+			text.append(chunk);
+		pending.clear();
+		pendingLines = 0;
+		return text.toString();
+	}
+
+	/**
+	 * Show the pending text and trim the oldest lines. Runs on the event
+	 * dispatch thread.
+	 */
+	private void update() {
+		String text = takePending();
+		if (text == null)
+			return;
+
+		area.append(text);
+
+		// The last line is the empty one after the final newline
+		int excess = area.getLineCount() - 1 - maxLines;
+		if (excess > 0) {
+			try {
+				area.replaceRange(null, 0, area.getLineEndOffset(excess - 1));
+			} catch (BadLocationException e) {
+				// The offsets come from the area itself
+			}
+		}
+	}
+
+	/**
+	 * Stop updating the text area.
+	 */
+	public void stop() {
+		timer.stop();
+	}
+}
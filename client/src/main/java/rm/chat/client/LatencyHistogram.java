@@ -0,0 +1,114 @@
+package rm.chat.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in logarithmic buckets, sixteen per power of two, so any
+ * value is known to within about 6%. Recording is a single atomic increment
+ * and any number of threads may record at once.
+ *
+ * Percentiles are read from a snapshot of the counts. The difference of two
+ * snapshots gives the latencies recorded in between.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// Values up to 2^MAX_EXPONENT have their own bucket, bigger ones share the last
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) Math.max(value, 0);
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Middle of the range of values counted in a bucket.
+	 */
+	private static long value(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		return low + (1L << (exponent - SUB_BITS)) / 2;
+	}
+
+	/**
+	 * Count a value.
+	 */
+	public void record(long value) {
+		counts.incrementAndGet(bucket(value));
+	}
+
+	/**
+	 * Copy the counts as they are now.
+	 */
+	public long[] snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			copy[i] = counts.get(i);
+		return copy;
+	}
+
+	/**
+	 * Counts recorded between two snapshots.
+	 */
+	public static long[] difference(long[] after, long[] before) {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = after[i] - before[i];
+		return counts;
+	}
+
+	public static long count(long[] counts) {
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		return total;
+	}
+
+	/**
+	 * Value below which the given fraction of the counted values fall.
+	 *
+	 * @param counts - a snapshot
+	 * @param fraction - between 0 and 1, 0.99 for p99
+	 * @return the value, or 0 if nothing was counted
+	 */
+	public static long percentile(long[] counts, double fraction) {
+		long total = count(counts);
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return value(i);
+		}
+		return value(counts.length - 1);
+	}
+
+	/**
+	 * Biggest value counted, to within its bucket.
+	 */
+	public static long max(long[] counts) {
+		for (int i = counts.length - 1; i >= 0; i--) {
+			if (counts[i] > 0)
+				return value(i);
+		}
+		return 0;
+	}
+}
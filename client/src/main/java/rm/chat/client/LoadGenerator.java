@@ -0,0 +1,539 @@
+package rm.chat.client;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load for a {@link rm.chat.server.ChatServer}. Opens many simulated
+ * users over non-blocking socket channels, spread over a few selector
+ * threads, and has each of them act at a steady rate: chat in its room, send
+ * a private message, change nick or change room, in configurable proportions.
+ *
+ * Chat and private messages carry the time they were sent, so every copy
+ * delivered back to a simulated user gives an end-to-end latency. Once a
+ * second the generator prints throughput and latency percentiles and adds
+ * them to a CSV file; at the end it writes a JSON summary of the run.
+ *
+ * Usage: LoadGenerator host port, with these system properties:
+ * rm.chat.load.users, rm.chat.load.rooms, rm.chat.load.threads,
+ * rm.chat.load.rate (actions per user per second), rm.chat.load.length
+ * (characters of chat text), rm.chat.load.mix (e.g.
+ * "chat=90,priv=5,nick=3,join=2"), rm.chat.load.connectRate (connections
+ * per second), rm.chat.load.warmup and rm.chat.load.duration (seconds) and
+ * rm.chat.load.out (path prefix of the result files).
+ */
+public class LoadGenerator {
+
+	final static int users = Integer.getInteger("rm.chat.load.users", 1000);
+	final static int rooms = Integer.getInteger("rm.chat.load.rooms", 10);
+	final static int threads = Integer.getInteger("rm.chat.load.threads", Runtime.getRuntime().availableProcessors());
+	final static double rate = Double.parseDouble(System.getProperty("rm.chat.load.rate", "1"));
+	final static int length = Integer.getInteger("rm.chat.load.length", 64);
+	final static String mix = System.getProperty("rm.chat.load.mix", "chat=90,priv=5,nick=3,join=2");
+	final static int connectRate = Integer.getInteger("rm.chat.load.connectRate", 2000);
+	final static int warmup = Integer.getInteger("rm.chat.load.warmup", 5);
+	final static int duration = Integer.getInteger("rm.chat.load.duration", 30);
+	final static String out = System.getProperty("rm.chat.load.out",
+		"load-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+
+	// Longest line read from the server
+	private static final int MAX_LINE = 1 << 20;
+
+	private static final byte[] OK = "OK".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ERROR = "ERROR".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MESSAGE = "MESSAGE ".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * What a simulated user does each time its turn comes.
+	 */
+	private static enum Action {
+		CHAT, PRIV, NICK, JOIN
+	}
+
+	// Weight of each action, in Action order
+	private static int[] weights;
+	private static int totalWeight;
+
+	// Totals over every user
+	private static final LongAdder connected = new LongAdder();
+	private static final LongAdder failed = new LongAdder();
+	private static final LongAdder sent = new LongAdder();
+	private static final LongAdder delivered = new LongAdder();
+	private static final LongAdder oks = new LongAdder();
+	private static final LongAdder errors = new LongAdder();
+	private static final LongAdder skipped = new LongAdder();
+
+	// Delivery latencies, in microseconds
+	private static final LatencyHistogram latency = new LatencyHistogram();
+
+	private static volatile boolean stopped;
+
+	/**
+	 * One simulated user.
+	 */
+	private static class User {
+		final int index;
+		SocketChannel channel;
+		SelectionKey key;
+		boolean connected;
+
+		// Output the socket didn't take yet, nothing else is sent until it does
+		ByteBuffer pending;
+
+		// Bytes of a line that isn't complete yet
+		ByteBuffer partial;
+
+		boolean renamed;
+
+		// Messages sent before the user joined its room are history, not load
+		long joinedAt;
+
+		// When the user acts next
+		long nextAt;
+
+		User(int index) {
+			this.index = index;
+		}
+	}
+
+	private static String nick(int index, boolean renamed) {
+		return renamed ? "load" + index + "x" : "load" + index;
+	}
+
+	/**
+	 * Read the action weights from a list like "chat=90,priv=5".
+	 */
+	static void parseMix(String mix) {
+		weights = new int[Action.values().length];
+		totalWeight = 0;
+		for (String part : mix.split(",")) {
+			String[] pair = part.trim().split("=");
+			if (pair.length != 2)
+				throw new IllegalArgumentException("Bad mix entry: " + part);
+			int weight = Integer.parseInt(pair[1].trim());
+			weights[Action.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)).ordinal()] += weight;
+			totalWeight += weight;
+		}
+		if (totalWeight <= 0)
+			throw new IllegalArgumentException("Empty mix: " + mix);
+	}
+
+	private static Action pick(Random random) {
+		int r = random.nextInt(totalWeight);
+		for (Action action : Action.values()) {
+			r -= weights[action.ordinal()];
+			if (r < 0)
+				return action;
+		}
+		return Action.CHAT;
+	}
+
+	/**
+	 * A selector thread driving a range of users.
+	 */
+	private static class Worker extends Thread {
+		private final InetSocketAddress address;
+		private final Selector selector;
+		private final User[] users;
+		private final PriorityQueue<User> schedule;
+		private final ByteBuffer readBuffer;
+		private final Random random;
+		private final String filler;
+		private final long interval;
+		private final double connectsPerNano;
+		private long started;
+		private int next;
+
+		Worker(int id, InetSocketAddress address, int first, int count) throws IOException {
+			super("load-" + id);
+			this.address = address;
+			this.selector = Selector.open();
+			this.users = new User[count];
+			for (int i = 0; i < count; i++)
+				users[i] = new User(first + i);
+			this.schedule = new PriorityQueue<>(Math.max(1, count), new Comparator<User>() {
+				@Override
+				public int compare(User a, User b) {
+					return Long.compare(a.nextAt, b.nextAt);
+				}
+			});
+			this.readBuffer = ByteBuffer.allocateDirect(1 << 16);
+			this.random = new Random(id);
+			StringBuilder text = new StringBuilder();
+			while (text.length() < length)
+				text.append("lorem ipsum dolor sit amet ");
+			text.setLength(Math.max(0, length - 21));
+			this.filler = text.toString();
+			this.interval = rate > 0 ? (long) (1e9 / rate) : 0;
+			this.connectsPerNano = (double) connectRate / Math.max(1, Math.min(threads, LoadGenerator.users)) / 1e9;
+		}
+
+		@Override
+		public void run() {
+			started = System.nanoTime();
+			try {
+				while (!stopped) {
+					connectMore(System.nanoTime());
+
+					long wait = 10;
+					if (!schedule.isEmpty())
+						wait = (schedule.peek().nextAt - System.nanoTime()) / 1000000;
+					selector.select(Math.max(1, Math.min(wait, 10)));
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						handle(key, (User) key.attachment());
+					}
+					runDue(System.nanoTime());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (User user : users)
+					close(user);
+			}
+		}
+
+		private void connectMore(long now) throws IOException {
+			long target = Math.min(users.length, (long) ((now - started) * connectsPerNano) + 1);
+			while (next < target) {
+				User user = users[next++];
+				try {
+					user.channel = SocketChannel.open();
+					user.channel.configureBlocking(false);
+					user.key = user.channel.register(selector, SelectionKey.OP_CONNECT, user);
+					if (user.channel.connect(address))
+						connected(user);
+				} catch (IOException e) {
+					failed.increment();
+					close(user);
+				}
+			}
+		}
+
+		private void handle(SelectionKey key, User user) {
+			try {
+				if (!key.isValid())
+					return;
+				if (key.isConnectable() && user.channel.finishConnect())
+					connected(user);
+				if (key.isValid() && key.isWritable())
+					write(user);
+				if (key.isValid() && key.isReadable())
+					read(user);
+			} catch (IOException e) {
+				if (!user.connected)
+					failed.increment();
+				close(user);
+			}
+		}
+
+		private void connected(User user) throws IOException {
+			user.key.interestOps(SelectionKey.OP_READ);
+			user.connected = true;
+			connected.increment();
+			user.joinedAt = System.nanoTime();
+			send(user, "/nick " + nick(user.index, false) + "\n/join room" + user.index % rooms + "\n");
+			if (interval > 0) {
+				// Spread the users over the interval
+				user.nextAt = user.joinedAt + (long) (random.nextDouble() * interval);
+				schedule.add(user);
+			}
+		}
+
+		private void runDue(long now) throws IOException {
+			while (!schedule.isEmpty() && schedule.peek().nextAt <= now) {
+				User user = schedule.poll();
+				if (user.channel == null)
+					continue;
+				if (user.pending != null)
+					skipped.increment();
+				else
+					act(user, now);
+				user.nextAt += interval;
+				schedule.add(user);
+			}
+		}
+
+		private void act(User user, long now) throws IOException {
+			switch (pick(random)) {
+			case CHAT:
+				send(user, "@" + now + " " + filler + "\n");
+				sent.increment();
+				break;
+			case PRIV:
+				send(user, "/priv " + nick(random.nextInt(LoadGenerator.users), false) + " @" + now + " " + filler + "\n");
+				sent.increment();
+				break;
+			case NICK:
+				user.renamed = !user.renamed;
+				send(user, "/nick " + nick(user.index, user.renamed) + "\n");
+				break;
+			case JOIN:
+				user.joinedAt = now;
+				send(user, "/join room" + random.nextInt(rooms) + "\n");
+				break;
+			}
+		}
+
+		private void send(User user, String line) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+			user.channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				user.pending = buffer;
+				user.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void write(User user) throws IOException {
+			if (user.pending == null)
+				return;
+			user.channel.write(user.pending);
+			if (!user.pending.hasRemaining()) {
+				user.pending = null;
+				user.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void read(User user) throws IOException {
+			readBuffer.clear();
+			if (user.channel.read(readBuffer) < 0) {
+				close(user);
+				return;
+			}
+			readBuffer.flip();
+
+			long now = System.nanoTime();
+			int start = 0;
+			int limit = readBuffer.limit();
+			for (int i = 0; i < limit; i++) {
+				if (readBuffer.get(i) != '\n')
+					continue;
+				if (user.partial != null && user.partial.position() > 0) {
+					append(user, start, i);
+					line(user, user.partial, 0, user.partial.position(), now);
+					user.partial.clear();
+				} else {
+					line(user, readBuffer, start, i, now);
+				}
+				start = i + 1;
+			}
+			if (start < limit)
+				append(user, start, limit);
+		}
+
+		private void append(User user, int from, int to) {
+			int needed = to - from;
+			if (user.partial == null)
+				user.partial = ByteBuffer.allocate(Math.max(256, needed));
+			if (user.partial.remaining() < needed) {
+				int size = Math.min(MAX_LINE, Math.max(user.partial.capacity() * 2, user.partial.position() + needed));
+				if (size < user.partial.position() + needed) {
+					// Not a line we care about, forget it
+					user.partial.clear();
+					return;
+				}
+				ByteBuffer bigger = ByteBuffer.allocate(size);
+				user.partial.flip();
+				bigger.put(user.partial);
+				user.partial = bigger;
+			}
+			for (int i = from; i < to; i++)
+				user.partial.put(readBuffer.get(i));
+		}
+
+		/**
+		 * Count a line from the server, and the latency of a chat message.
+		 */
+		private void line(User user, ByteBuffer buffer, int from, int to, long now) {
+			if (startsWith(buffer, from, to, OK)) {
+				oks.increment();
+			} else if (startsWith(buffer, from, to, ERROR)) {
+				errors.increment();
+			} else if (startsWith(buffer, from, to, MESSAGE)) {
+				long stamp = stamp(buffer, from + MESSAGE.length, to);
+				if (stamp >= user.joinedAt) {
+					delivered.increment();
+					latency.record((now - stamp) / 1000);
+				}
+			}
+		}
+
+		private static boolean startsWith(ByteBuffer buffer, int from, int to, byte[] prefix) {
+			if (to - from < prefix.length)
+				return false;
+			for (int i = 0; i < prefix.length; i++) {
+				if (buffer.get(from + i) != prefix[i])
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Find the send time in a message, as "@nanos".
+		 *
+		 * @return the time, or Long.MIN_VALUE if there is none
+		 */
+		private static long stamp(ByteBuffer buffer, int from, int to) {
+			int i = from;
+			while (i < to && buffer.get(i) != '@')
+				i++;
+			if (++i >= to)
+				return Long.MIN_VALUE;
+
+			boolean negative = buffer.get(i) == '-';
+			if (negative)
+				i++;
+			long value = 0;
+			int digits = 0;
+			for (; i < to; i++, digits++) {
+				byte b = buffer.get(i);
+				if (b < '0' || b > '9')
+					break;
+				value = value * 10 + (b - '0');
+			}
+			if (digits == 0)
+				return Long.MIN_VALUE;
+			return negative ? -value : value;
+		}
+
+		private void close(User user) {
+			if (user.channel == null)
+				return;
+			try {
+				user.channel.close();
+			} catch (IOException e) {
+				// Nothing left to do with it
+			}
+			user.channel = null;
+		}
+	}
+
+	/**
+	 * Counters at one point in time.
+	 */
+	private static class Sample {
+		final long time = System.nanoTime();
+		final long connected = LoadGenerator.connected.sum();
+		final long sent = LoadGenerator.sent.sum();
+		final long delivered = LoadGenerator.delivered.sum();
+		final long oks = LoadGenerator.oks.sum();
+		final long errors = LoadGenerator.errors.sum();
+		final long skipped = LoadGenerator.skipped.sum();
+		final long failed = LoadGenerator.failed.sum();
+		final long[] latency = LoadGenerator.latency.snapshot();
+	}
+
+	private static double perSecond(long count, long nanos) {
+		return nanos <= 0 ? 0 : count * 1e9 / nanos;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: LoadGenerator host port");
+			return;
+		}
+		InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+		parseMix(mix);
+
+		List<Worker> workers = new ArrayList<>();
+		int workerCount = Math.max(1, Math.min(threads, users));
+		for (int i = 0; i < workerCount; i++) {
+			int first = (int) ((long) users * i / workerCount);
+			int last = (int) ((long) users * (i + 1) / workerCount);
+			workers.add(new Worker(i, address, first, last - first));
+		}
+		for (Worker worker : workers)
+			worker.start();
+
+		Sample start = new Sample();
+		Sample measured = null;
+		Sample previous = start;
+
+		PrintWriter csv = new PrintWriter(out + ".csv", "UTF-8");
+		csv.println("second,connected,sent,delivered,ok,errors,skipped,failed,sent_per_s,delivered_per_s,p50_us,p99_us,p999_us,max_us");
+		for (int second = 1; second <= warmup + duration; second++) {
+			long wake = start.time + second * 1000000000L;
+			long sleep;
+			while ((sleep = wake - System.nanoTime()) > 0)
+				Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+
+			Sample now = new Sample();
+			if (second == warmup)
+				measured = now;
+			long[] counts = LatencyHistogram.difference(now.latency, previous.latency);
+			long nanos = now.time - previous.time;
+			csv.printf(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%d,%.1f,%.1f,%d,%d,%d,%d%n",
+				second, now.connected, now.sent, now.delivered, now.oks, now.errors, now.skipped, now.failed,
+				perSecond(now.sent - previous.sent, nanos), perSecond(now.delivered - previous.delivered, nanos),
+				LatencyHistogram.percentile(counts, 0.5), LatencyHistogram.percentile(counts, 0.99),
+				LatencyHistogram.percentile(counts, 0.999), LatencyHistogram.max(counts));
+			csv.flush();
+			System.out.printf(Locale.ROOT, "%4ds connected=%d sent/s=%.0f delivered/s=%.0f p50=%dus p99=%dus p999=%dus errors=%d%n",
+				second, now.connected, perSecond(now.sent - previous.sent, nanos),
+				perSecond(now.delivered - previous.delivered, nanos),
+				LatencyHistogram.percentile(counts, 0.5), LatencyHistogram.percentile(counts, 0.99),
+				LatencyHistogram.percentile(counts, 0.999), now.errors - previous.errors);
+			previous = now;
+		}
+		csv.close();
+
+		stopped = true;
+		for (Worker worker : workers)
+			worker.join();
+
+		if (measured == null)
+			measured = start;
+		writeSummary(args[0] + ":" + args[1], measured, previous);
+		System.out.println("Results in " + out + ".csv and " + out + ".json");
+	}
+
+	/**
+	 * Write the totals of the measured part of the run as JSON.
+	 */
+	private static void writeSummary(String server, Sample from, Sample to) throws IOException {
+		long[] counts = LatencyHistogram.difference(to.latency, from.latency);
+		long nanos = to.time - from.time;
+
+		PrintWriter json = new PrintWriter(out + ".json", "UTF-8");
+		json.println("{");
+		json.printf(Locale.ROOT, "  \"server\": \"%s\",%n", server);
+		json.printf(Locale.ROOT, "  \"settings\": {\"users\": %d, \"rooms\": %d, \"threads\": %d, \"rate\": %s, "
+			+ "\"length\": %d, \"mix\": \"%s\", \"connectRate\": %d, \"warmup\": %d, \"duration\": %d},%n",
+			users, rooms, threads, rate, length, mix, connectRate, warmup, duration);
+		json.printf(Locale.ROOT, "  \"seconds\": %.3f,%n", nanos / 1e9);
+		json.printf(Locale.ROOT, "  \"connected\": %d,%n", to.connected);
+		json.printf(Locale.ROOT, "  \"failed\": %d,%n", to.failed);
+		json.printf(Locale.ROOT, "  \"sent\": %d,%n", to.sent - from.sent);
+		json.printf(Locale.ROOT, "  \"delivered\": %d,%n", to.delivered - from.delivered);
+		json.printf(Locale.ROOT, "  \"ok\": %d,%n", to.oks - from.oks);
+		json.printf(Locale.ROOT, "  \"errors\": %d,%n", to.errors - from.errors);
+		json.printf(Locale.ROOT, "  \"skipped\": %d,%n", to.skipped - from.skipped);
+		json.printf(Locale.ROOT, "  \"sentPerSecond\": %.1f,%n", perSecond(to.sent - from.sent, nanos));
+		json.printf(Locale.ROOT, "  \"deliveredPerSecond\": %.1f,%n", perSecond(to.delivered - from.delivered, nanos));
+		json.printf(Locale.ROOT, "  \"latencyMicros\": {\"count\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}%n",
+			LatencyHistogram.count(counts), LatencyHistogram.percentile(counts, 0.5),
+			LatencyHistogram.percentile(counts, 0.9), LatencyHistogram.percentile(counts, 0.99),
+			LatencyHistogram.percentile(counts, 0.999), LatencyHistogram.max(counts));
+		json.println("}");
+		json.close();
+	}
+}
@@ -0,0 +1,17 @@
+package rm.chat.client;
+
+import rm.chat.shared.Message;
+
+/**
+ * Receives what the server sends a {@link ChatSession} that isn't the
+ * result of a command: messages, joins, leaves and nick changes.
+ */
+public interface MessageListener {
+
+	/**
+	 * Called on the session's reader thread, so it should not block.
+	 *
+	 * @param message - from the server
+	 */
+	void received(Message message);
+}
@@ -0,0 +1,67 @@
+package rm.chat.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import rm.chat.shared.BinaryCodec;
+import rm.chat.shared.Message;
+
+public class ChatSessionTest {
+
+	@Test
+	public void escapesLinesStartingWithSlash() throws IOException {
+		assertEquals("//leave", sayText("/leave"));
+		assertEquals("hello /leave", sayText("hello /leave"));
+	}
+
+	@Test
+	public void escapesSlashAfterWhitespace() throws IOException {
+		assertEquals("  //leave", sayText("  /leave"));
+		assertEquals("\t//leave", sayText("\t/leave"));
+		assertEquals(" \t//leave", sayBinary(" \t/leave"));
+	}
+
+	// What the server reads when a text session says something
+	private static String sayText(String text) throws IOException {
+		try (ServerSocket server = new ServerSocket(0);
+				ChatSession session = ChatSession.connect("localhost", server.getLocalPort(), false);
+				Socket socket = server.accept()) {
+			session.say(text);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			return in.readLine();
+		}
+	}
+
+	// What the server reads when a binary session says something
+	private static String sayBinary(String text) throws IOException {
+		try (ServerSocket server = new ServerSocket(0);
+				ChatSession session = ChatSession.connect("localhost", server.getLocalPort(), true);
+				Socket socket = server.accept()) {
+			session.say(text);
+			InputStream in = socket.getInputStream();
+			assertEquals(BinaryCodec.HELLO, (byte) in.read());
+
+			BinaryCodec codec = new BinaryCodec(1 << 16);
+			byte[] bytes = new byte[1024];
+			while (true) {
+				int n = in.read(bytes);
+				if (n < 0)
+					throw new IOException("Closed before the message");
+				codec.feed(ByteBuffer.wrap(bytes, 0, n));
+				Message message = codec.next();
+				if (message != null)
+					return message.getMessage();
+			}
+		}
+	}
+}
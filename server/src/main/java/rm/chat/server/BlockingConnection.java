@@ -0,0 +1,111 @@
+package rm.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One connection of the thread per connection engine. The reader thread
+ * (this runnable) does blocking reads and runs the commands; a writer
+ * thread sleeps until frames are queued for the client and then writes
+ * them. A slow reader only ever blocks its own writer. While the client
+ * is suspended the reader stops reading and runs the tasks handed to it
+ * instead, one of which resumes the client.
+ */
+public class BlockingConnection implements Runnable, Transport {
+
+	private final SocketChannel sc;
+	private final ByteBuffer buffer;
+	private RemoteClient client;
+	private volatile Thread writer;
+
+	// Tasks for the reader thread
+	private final BlockingQueue<Runnable> tasks;
+
+	public BlockingConnection(SocketChannel sc) {
+		this.sc = sc;
+		this.buffer = ChatServer.buffers.lease(4096);
+		this.tasks = new LinkedBlockingQueue<>();
+	}
+
+	@Override
+	public void scheduleFlush(RemoteClient client) {
+		if (client.markFlushScheduled())
+			LockSupport.unpark(writer);
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+	}
+
+	@Override
+	public void deregister(RemoteClient client) {
+		ThreadEngine.stopHeartbeat(client);
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Write the client's frames as they are queued, until the connection
+	 * is closed.
+	 */
+	private void write() {
+		try {
+			while (!client.isClosed()) {
+				if (!client.clearFlushScheduled()) {
+					LockSupport.park(this);
+					continue;
+				}
+				client.flush();
+				if (client.isClosing()) {
+					// Pick up anything queued just before closing, like BYE
+					client.flush();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Fall through and close
+		}
+		ChatServer.close(client);
+		client.releaseFrames();
+	}
+
+	@Override
+	public void run() {
+		client = ChatServer.addClient(this, sc, null);
+		if (Heartbeat.isEnabled())
+			ThreadEngine.startHeartbeat(client);
+
+		writer = ThreadEngine.getThreads().newThread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		});
+		writer.start();
+
+		try {
+			// A suspended client is always resumed, even once closed
+			while (client.isSuspended() || (!client.isClosed() && !client.isClosing())) {
+				if (client.isSuspended()) {
+					tasks.take().run();
+					continue;
+				}
+				buffer.clear();
+				if (sc.read(buffer) < 0)
+					break;
+				buffer.flip();
+				ChatServer.processLines(client, buffer);
+			}
+		} catch (IOException | InterruptedException e) {
+			// Fall through and close
+		}
+
+		if (!client.isClosing())
+			ChatServer.close(client);
+		ChatServer.buffers.release(buffer);
+	}
+}
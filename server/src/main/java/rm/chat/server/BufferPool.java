@@ -0,0 +1,138 @@
+package rm.chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers in a few size classes. A lease returns a cleared
+ * buffer of the smallest class that fits; releasing it puts it back for the
+ * next lease. Requests bigger than the largest class get a buffer of their
+ * own that is not kept.
+ *
+ * Direct buffers let the channel write straight from them, where a heap
+ * buffer is first copied into a temporary direct one by the JDK.
+ */
+public class BufferPool {
+
+	// Capacity of each size class
+	private static final int[] SIZES = { 256, 1024, 4096, 16384, 65536 };
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCount;
+	private final int[] maxFree;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder outstanding;
+
+	/**
+	 * @param maxPooledBytes - most bytes each size class keeps around
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(long maxPooledBytes) {
+		this.free = new ConcurrentLinkedQueue[SIZES.length];
+		this.freeCount = new AtomicInteger[SIZES.length];
+		this.maxFree = new int[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++) {
+			free[i] = new ConcurrentLinkedQueue<>();
+			freeCount[i] = new AtomicInteger();
+			maxFree[i] = (int) Math.min(Integer.MAX_VALUE, maxPooledBytes / SIZES[i]);
+		}
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.outstanding = new LongAdder();
+	}
+
+	private static int sizeClass(int size) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (size <= SIZES[i])
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Lease a cleared direct buffer of at least the given size.
+	 *
+	 * @param size - bytes needed
+	 * @return the buffer, to be given back with {@link #release(ByteBuffer)}
+	 */
+	public ByteBuffer lease(int size) {
+		outstanding.increment();
+
+		int c = sizeClass(size);
+		if (c < 0) {
+			misses.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer buffer = free[c].poll();
+		if (buffer == null) {
+			misses.increment();
+			return ByteBuffer.allocateDirect(SIZES[c]);
+		}
+		freeCount[c].decrementAndGet();
+		hits.increment();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give back a leased buffer. The caller must not touch it afterwards.
+	 *
+	 * @param buffer from {@link #lease(int)}
+	 */
+	public void release(ByteBuffer buffer) {
+		outstanding.decrement();
+
+		int c = sizeClass(buffer.capacity());
+		if (c < 0 || SIZES[c] != buffer.capacity())
+			return;
+
+		if (freeCount[c].incrementAndGet() <= maxFree[c]) {
+			free[c].offer(buffer);
+		} else {
+			// Pool is full, let the buffer go
+			freeCount[c].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Leases served from the pool.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Leases that had to allocate a new buffer.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Buffers leased and not yet released.
+	 */
+	public long getOutstanding() {
+		return outstanding.sum();
+	}
+
+	/**
+	 * Buffers sitting in the pool.
+	 */
+	public int getFree() {
+		int total = 0;
+		for (AtomicInteger count : freeCount)
+			total += count.get();
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits=%d misses=%d outstanding=%d free=%d",
+			getHits(), getMisses(), getOutstanding(), getFree());
+	}
+}
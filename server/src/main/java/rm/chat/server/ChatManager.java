@@ -0,0 +1,277 @@
+package rm.chat.server;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep track of the existing rooms. Rooms are created on the first join and
+ * reclaimed once their last member leaves, either right away or after a
+ * grace period.
+ * 
+ * A room is closed before it is removed, and a closed room refuses new
+ * members, so a join racing with the eviction just creates a fresh room.
+ * 
+ * Rooms are used from any thread, one at a time under the room's monitor.
+ * They can also be sharded: each room is then owned by one
+ * {@link RoomShard}, picked by the hash of its name, and everything done to
+ * it runs on that shard's thread, without locking. The callers only update
+ * the user's own state and post the rest, so they never wait on a busy room.
+ */
+public class ChatManager {
+
+	/**
+	 * Something done to a room, by the room's shard if rooms are sharded.
+	 */
+	public interface RoomAction {
+		void run(Chatroom room) throws IOException;
+	}
+
+	private ConcurrentMap<String, Chatroom> rooms;
+
+	// Threads owning the rooms, null if every thread uses the rooms directly
+	private RoomShard[] shards;
+
+	// How long an empty room is kept around, in milliseconds
+	private long evictionDelay;
+	private ScheduledExecutorService evictor;
+
+	private AtomicLong created;
+	private AtomicLong evicted;
+	
+	public ChatManager() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param evictionDelay - milliseconds an empty room is kept before
+	 * being reclaimed, 0 to reclaim it as soon as it empties
+	 * @param shards - number of threads owning the rooms, 0 to let every
+	 * thread use the rooms directly
+	 */
+	public ChatManager(long evictionDelay, int shards) {
+		this.rooms = new ConcurrentHashMap<>();
+		this.evictionDelay = evictionDelay;
+		this.created = new AtomicLong();
+		this.evicted = new AtomicLong();
+
+		if (evictionDelay > 0) {
+			this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "chat-room-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		if (shards > 0) {
+			this.shards = new RoomShard[shards];
+			for (int i = 0; i < shards; i++) {
+				this.shards[i] = new RoomShard(i);
+				this.shards[i].start();
+			}
+		}
+	}
+
+	private RoomShard shardOf(String name) {
+		return shards[Math.floorMod(name.hashCode(), shards.length)];
+	}
+
+	/**
+	 * Do something to a room if it exists, on its shard if rooms are
+	 * sharded, and right away otherwise.
+	 * 
+	 * @param name of the room
+	 * @param action to run
+	 */
+	public void withRoom(final String name, final RoomAction action) {
+		if (shards == null) {
+			apply(name, action);
+			return;
+		}
+		shardOf(name).execute(new Runnable() {
+			@Override
+			public void run() {
+				apply(name, action);
+			}
+		});
+	}
+
+	private void apply(String name, RoomAction action) {
+		Chatroom room = rooms.get(name);
+		if (room == null)
+			return;
+		try {
+			if (shards == null) {
+				synchronized (room) {
+					action.run(room);
+				}
+			} else {
+				action.run(room);
+			}
+		} catch (IOException e) {
+			Log.error("Action on %s failed: %s", name, e);
+		}
+	}
+
+	public Chatroom getRoom(String name) {
+		return rooms.get(name);
+	}
+
+	/**
+	 * Get a room, creating it if it doesn't exist.
+	 */
+	private Chatroom getOrCreateRoom(String name) {
+		Chatroom room = rooms.get(name);
+		if (room == null) {
+			Chatroom fresh = new Chatroom(name);
+			room = rooms.putIfAbsent(name, fresh);
+			if (room == null) {
+				created.incrementAndGet();
+				if (ChatServer.cluster != null)
+					ChatServer.cluster.roomOpened(name);
+				room = fresh;
+			}
+		}
+		return room;
+	}
+	
+	public void joinRoom(final RemoteClient user, final String newRoom) throws IOException {
+		if (user.getRoom() != null) {
+			leaveRoom(user);
+		}
+
+		if (shards == null) {
+			addUser(user, newRoom);
+			return;
+		}
+
+		// The user is in the room from now on, for whatever they send next
+		user.joinRoom(newRoom);
+		shardOf(newRoom).execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					addUser(user, newRoom);
+				} catch (IOException e) {
+					Log.error("Join of %s failed: %s", user.getId(), e);
+				}
+			}
+		});
+	}
+
+	private void addUser(RemoteClient user, String name) throws IOException {
+		while (true) {
+			Chatroom room = getOrCreateRoom(name);
+			boolean added;
+			if (shards == null) {
+				synchronized (room) {
+					added = room.addUser(user);
+				}
+			} else {
+				// The user was moved when it joined
+				added = room.addMember(user);
+			}
+			if (added)
+				return;
+			// Lost the race with the room's eviction
+			rooms.remove(name, room);
+		}
+	}
+	
+	public void leaveRoom(final RemoteClient user) throws IOException{
+		if (shards == null) {
+			Chatroom room = rooms.get(user.getRoom());
+			if (room != null) {
+				synchronized (room) {
+					room.removeUser(user);
+				}
+				if (room.isEmpty())
+					scheduleEviction(room);
+			}
+			return;
+		}
+
+		String name = user.getRoom();
+		user.leaveRoom();
+		withRoom(name, new RoomAction() {
+			@Override
+			public void run(Chatroom room) throws IOException {
+				room.removeMember(user);
+				if (room.isEmpty())
+					scheduleEviction(room);
+			}
+		});
+	}
+
+	private void scheduleEviction(final Chatroom room) {
+		if (evictor == null) {
+			evict(room);
+			return;
+		}
+		evictor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (shards == null) {
+					evict(room);
+					return;
+				}
+				shardOf(room.getName()).execute(new Runnable() {
+					@Override
+					public void run() {
+						evict(room);
+					}
+				});
+			}
+		}, evictionDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Remove a room if it is still empty.
+	 */
+	private void evict(Chatroom room) {
+		boolean closed;
+		if (shards == null) {
+			synchronized (room) {
+				closed = room.close();
+			}
+		} else {
+			closed = room.close();
+		}
+		if (!closed)
+			return;
+		if (ChatServer.cluster != null)
+			ChatServer.cluster.roomClosed(room.getName());
+		if (rooms.remove(room.getName(), room))
+			evicted.incrementAndGet();
+	}
+
+	/**
+	 * Number of rooms that currently exist.
+	 */
+	public int getLiveRooms() {
+		return rooms.size();
+	}
+
+	/**
+	 * Number of rooms created since the server started.
+	 */
+	public long getCreatedRooms() {
+		return created.get();
+	}
+
+	/**
+	 * Number of empty rooms reclaimed since the server started.
+	 */
+	public long getEvictedRooms() {
+		return evicted.get();
+	}
+
+}
@@ -0,0 +1,826 @@
+package rm.chat.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import rm.chat.server.RemoteClient.State;
+import rm.chat.shared.*;
+import rm.chat.shared.Message.MessageType;
+
+public class ChatServer {
+	
+	// Longest line a client may send, in bytes
+	final static int maxLineLength = Integer.getInteger("rm.chat.maxLineLength", 16384);
+
+	// Bytes that may wait to be sent to one client, and what to do beyond that
+	final static int sendBufferBytes = Integer.getInteger("rm.chat.sendBufferBytes", 1 << 20);
+	final static OverflowPolicy overflowPolicy = 
+		StandardOverflowPolicy.forName(System.getProperty("rm.chat.overflowPolicy", "drop-oldest"));
+
+	// How long an empty room is kept before it is reclaimed, in milliseconds
+	final static long roomEvictionDelay = Long.getLong("rm.chat.roomEvictionDelay", 0);
+
+	// Chat messages kept per room, how many are replayed on join, and the
+	// most bytes all rooms may keep together
+	final static int historySize = Integer.getInteger("rm.chat.historySize", 100);
+	final static int historyReplay = Integer.getInteger("rm.chat.historyReplay", 20);
+	final static long historyBytes = Long.getLong("rm.chat.historyBytes", 64L << 20);
+
+	// Directory of the rooms' durable logs, none if unset; size a log
+	// segment grows to and how often logs are forced to disk, in milliseconds
+	final static String logDir = System.getProperty("rm.chat.logDir");
+	final static int logSegmentBytes = Integer.getInteger("rm.chat.logSegmentBytes", 16 << 20);
+	final static long logFlushMillis = Long.getLong("rm.chat.logFlushMillis", 100);
+
+	// Most messages a single /history may ask for
+	final static int historyMax = Integer.getInteger("rm.chat.historyMax", 1000);
+
+	// Milliseconds a client may stay silent before it is sent PING, and
+	// before its connection is closed, 0 for never; length of a tick of the
+	// timer wheels that watch them, in milliseconds
+	final static long pingInterval = Long.getLong("rm.chat.pingInterval", 0);
+	final static long idleTimeout = Long.getLong("rm.chat.idleTimeout", 0);
+	final static long timerTick = Long.getLong("rm.chat.timerTick", 100);
+
+	// Threads owning the rooms, 0 to let every loop use the rooms directly
+	final static int roomShards = Integer.getInteger("rm.chat.roomShards", 0);
+
+	// Direct buffers for reads and encoded frames
+	final static BufferPool buffers = new BufferPool(Long.getLong("rm.chat.bufferPoolBytes", 16 << 20));
+
+	// Which engine runs the connections: "selector" or "threads"
+	final static String engine = System.getProperty("rm.chat.engine", "selector");
+
+	// host:port of every node's cluster port, the same list on every node,
+	// unset to run alone; which of them this node is; how long taking a nick
+	// waits for the nick's home node, in milliseconds; frames that may wait
+	// for a slow node before it is disconnected
+	final static String clusterNodes = System.getProperty("rm.chat.cluster.nodes");
+	final static int clusterNode = Integer.getInteger("rm.chat.cluster.node", 0);
+	final static long clusterTimeout = Long.getLong("rm.chat.cluster.timeout", 1000);
+	final static int clusterQueue = Integer.getInteger("rm.chat.cluster.queue", 65536);
+
+	// Selector used by the acceptor thread
+	private static Selector selector;
+	private static ServerSocketChannel ssc;
+
+	// Worker loops that own the accepted connections
+	private static EventLoop[] loops;
+	private static int nextLoop;
+
+	private static ClientManager clients = new ClientManager();
+	private static ChatManager rooms = new ChatManager(roomEvictionDelay, roomShards);
+
+	// The other nodes, null when running alone
+	final static Cluster cluster = clusterNodes == null ? null
+		: new Cluster(clusterNodes.split(","), clusterNode, clients, rooms);
+
+	// Commands users can send
+	private static final CommandTable commands = createCommands();
+	
+	// private static ServerSocket ss;
+
+	/**
+	 * Wrapper for ClientManager's getClient
+	 * 
+	 * @param key - the client's SelectionKey
+	 * @return the client
+	 */
+	static RemoteClient getClient(SelectionKey key) {
+		int id = (Integer) key.attachment();
+		return clients.getClientById(id);
+	}
+
+	/**
+	 * Process a message sent by a client
+	 * 
+	 * @param loop that owns the connection
+	 * @param client
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean processInput(EventLoop loop, RemoteClient client) throws IOException {
+		SocketChannel sc = client.getChannel();
+		ByteBuffer buffer = loop.buffer;
+
+		// Read the message to the buffer
+		buffer.clear();
+		sc.read(buffer);
+		buffer.flip();
+
+		// If no data, close the connection
+		if (buffer.limit() == 0) {
+			return false;
+		}
+		
+		processLines(client, buffer);
+		return true;
+	}
+
+	/**
+	 * Process the lines in data read from a client, whichever engine read it
+	 * 
+	 * @param client
+	 * @param buffer - data read, ready to be read
+	 * @throws IOException
+	 */
+	static void processLines(RemoteClient client, ByteBuffer buffer) throws IOException {
+		Metrics.bytesIn.add(buffer.remaining());
+		client.markRead();
+
+		// The first byte a client sends picks its protocol
+		if (!client.isNegotiated() && buffer.hasRemaining()) {
+			if (buffer.get(buffer.position()) == BinaryCodec.HELLO) {
+				buffer.get();
+				client.setProtocol(Protocol.BINARY);
+				log(client, "Protocol %s", Protocol.BINARY);
+				client.sendOK();
+			} else {
+				client.setProtocol(Protocol.TEXT);
+			}
+		}
+
+		decodeLines(client, buffer);
+	}
+
+	/**
+	 * Run the lines in data from a client until it runs out or the client
+	 * is suspended, in which case the rest is held for when it resumes.
+	 * 
+	 * @param client
+	 * @param buffer - data from the client, ready to be read
+	 * @throws IOException
+	 */
+	private static void decodeLines(RemoteClient client, ByteBuffer buffer) throws IOException {
+		if (client.getProtocol() == Protocol.BINARY) {
+			BinaryCodec codec = client.getBinaryCodec();
+			codec.feed(buffer);
+			Message frame;
+			while ((frame = codec.next()) != null) {
+				processLine(client, frame.getMessage());
+				if (client.isSuspended()) {
+					client.hold(buffer);
+					return;
+				}
+			}
+			return;
+		}
+
+		LineDecoder lines = client.getLineDecoder();
+		lines.feed(buffer);
+
+		while (true) {
+			String str;
+			try {
+				str = lines.nextLine();
+			} catch (LineDecoder.LineTooLongException e) {
+				log(client, e.getMessage());
+				client.reportResult(false);
+				continue;
+			}
+			if (str == null)
+				break;
+
+			processLine(client, str);
+			if (client.isSuspended()) {
+				client.hold(buffer);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Report the result of the command a client was suspended on, then go
+	 * on with the lines it sent meanwhile. Runs on the client's transport.
+	 * 
+	 * @param client
+	 * @param result of the command
+	 */
+	private static void resume(RemoteClient client, boolean result) {
+		ByteBuffer held = client.resume();
+		if (client.isClosed())
+			return;
+		try {
+			client.reportResult(result);
+			if (held != null)
+				decodeLines(client, held);
+		} catch (IOException e) {
+			close(client);
+		}
+	}
+
+	/**
+	 * Process one line sent by a client, a command or a chat message
+	 * 
+	 * @param client
+	 * @param str - the line
+	 * @throws IOException
+	 */
+	private static void processLine(RemoteClient client, String str) throws IOException {
+		log(client, str);
+		Metrics.messagesIn.increment();
+
+		// Copies only a line with surrounding whitespace
+		str = str.trim();
+		if (str.length() == 0)
+			return;
+
+		if (Message.isCommand(str)) {
+			boolean result = commands.dispatch(client, str);
+			// A suspended client gets its result when it is resumed
+			if (!client.isSuspended())
+				client.reportResult(result);
+		}
+		else if (client.canChat()) {
+			// The room's history keeps the message and the cluster relays
+			// it, so it outlives the line; it is still encoded once per room
+			final Message message = new Message(client.getNick(), Message.unescape(str));
+			rooms.withRoom(client.getRoom(), new ChatManager.RoomAction() {
+				@Override
+				public void run(Chatroom room) throws IOException {
+					room.broadcast(message);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Register the commands users can send.
+	 */
+	private static CommandTable createCommands() {
+		CommandTable commands = new CommandTable();
+		commands.register("/nick", 1, 1, new Command() {
+			@Override
+			public boolean run(RemoteClient client, CommandLine line) {
+				return setNickname(client, line.arg(0));
+			}
+		});
+		commands.register("/join", 1, 1, new Command() {
+			@Override
+			public boolean run(RemoteClient client, CommandLine line) {
+				return joinRoom(client, line.arg(0));
+			}
+		});
+		commands.register("/leave", 0, 0, new Command() {
+			@Override
+			public boolean run(RemoteClient client, CommandLine line) {
+				return leaveRoom(client);
+			}
+		});
+		commands.register("/bye", 0, 0, new Command() {
+			@Override
+			public boolean run(RemoteClient client, CommandLine line) {
+				return disconnect(client);
+			}
+		});
+		commands.register("/priv", 2, Integer.MAX_VALUE, new Command() {
+			@Override
+			public boolean run(RemoteClient client, CommandLine line) {
+				return privateMessage(client, line.arg(0), line.rest(1));
+			}
+		});
+		commands.register("/history", 0, 1, new Command() {
+			@Override
+			public boolean run(RemoteClient client, CommandLine line) {
+				return history(client, line.argCount() == 0 ? historyReplay : line.intArg(0));
+			}
+		});
+		commands.register("/stats", 0, 0, new Command() {
+			@Override
+			public boolean run(RemoteClient client, CommandLine line) throws IOException {
+				return stats(client);
+			}
+		});
+		return commands;
+	}
+	
+	/**
+	 * Send a message to a single user.
+	 * 
+	 * @param client sending it
+	 * @param to - nick of the user
+	 * @param str - the message
+	 */
+	private static boolean privateMessage(RemoteClient client, String to, String str) {
+		
+		if (client.getState() == State.INIT || client.getNick().equals(to))
+			return false;
+
+		log(client, "To %s: %s", to, str);
+		
+		try {
+			RemoteClient other = clients.getClientByName(to);
+			
+			if (other != null) {
+				other.sendMessage(new Message(
+					MessageType.PRIV, 
+					String.format("From %s:", client.getNick()), 
+					str
+				));
+			} else if (cluster == null || !cluster.sendPrivate(client.getNick(), to, str)) {
+				return false;
+			}
+			
+			client.sendMessage(new Message(
+				MessageType.PRIV, 
+				String.format("To %s:", to), 
+				str
+			));
+			
+			return true;
+		} catch (IOException e) {
+			Log.error("Private message from %s failed: %s", client.getId(), e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Send a user the last messages said in their room, the default
+	 * replay count if no number is given.
+	 * 
+	 * @param client
+	 * @param n - number of messages, negative if it wasn't a number
+	 */
+	private static boolean history(final RemoteClient client, int n) {
+		if (client.getState() != State.INSIDE || n < 0)
+			return false;
+
+		log(client, "History %s", n);
+		final int count = Math.min(n, historyMax);
+		rooms.withRoom(client.getRoom(), new ChatManager.RoomAction() {
+			@Override
+			public void run(Chatroom room) {
+				room.sendHistory(client, count);
+			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Send a user the server's metrics, one per line.
+	 * 
+	 * @param client
+	 */
+	private static boolean stats(RemoteClient client) throws IOException {
+		for (String line : Metrics.lines())
+			client.sendMessage(new Message(MessageType.PRIV, "stats", line));
+		return true;
+	}
+
+	/**
+	 * Change a user's nickname. When another node has to be asked for it,
+	 * the user is suspended until the answer comes and the result is
+	 * reported then.
+	 * 
+	 * @param sc   user's socket
+	 * @param name to give the user
+	 */
+	private static boolean setNickname(final RemoteClient client, final String name) {
+		CompletableFuture<Boolean> claim = clients.claim(client, name);
+		if (claim.isDone())
+			return takeNickname(client, name, claim.join());
+
+		client.suspend();
+		claim.thenAccept(new Consumer<Boolean>() {
+			@Override
+			public void accept(final Boolean granted) {
+				client.getTransport().execute(new Runnable() {
+					@Override
+					public void run() {
+						resume(client, takeNickname(client, name, granted));
+					}
+				});
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Give a user the nickname it claimed, if the claim succeeded.
+	 */
+	private static boolean takeNickname(RemoteClient client, String name, boolean granted) {
+		if (!granted)
+			return false;
+		if (client.isClosed()) {
+			// Left while the claim was being decided
+			clients.drop(client, name);
+			return false;
+		}
+
+		String oldNick = client.getNick();
+		clients.take(client, name);
+		log(client, "Name set to '%s'", client.getNick());
+
+		String roomName = client.getRoom();
+		if (roomName != null) {
+			final Message message = new Message(
+				MessageType.NEWNICK,
+				client.getNick(),
+				oldNick
+			);
+			rooms.withRoom(roomName, new ChatManager.RoomAction() {
+				@Override
+				public void run(Chatroom room) throws IOException {
+					room.broadcast(message);
+				}
+			});
+		}
+		return true;
+	}
+		
+	/**
+	 * Add a user to a room
+	 * 
+	 * @param client
+	 * @param room
+	 */
+	private static boolean joinRoom(RemoteClient client, String room) {
+		log(client, "Join %s", room);
+
+		if (client.getState() == State.INIT)
+			return false;
+		
+		String oldRoom = client.getRoom();
+		if (oldRoom != null && room.compareTo(oldRoom) == 0)
+			return false;
+
+		try {
+			rooms.joinRoom(client, room);
+		} catch (IOException e) {
+			Log.error("Join of %s failed: %s", client.getId(), e);
+		}
+	
+		return true;
+	}	
+
+	/**
+	 * Remove a user from a room
+	 * 
+	 * @param client
+	 * @param room
+	 */
+	private static boolean leaveRoom(RemoteClient client) {
+		log(client, "Left %s", client.getRoom());
+		
+		try {
+			if (client.getRoom() != null){
+				rooms.leaveRoom(client);
+				return true;
+			}
+		} catch (IOException e) {
+			Log.error("Leave of %s failed: %s", client.getId(), e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Remove a user from the server.
+	 * 
+	 * @param sc user's socket
+	 */
+	private static boolean disconnect(RemoteClient client) {
+		log(client, "Disconnect");
+		leaveRoom(client);
+		try {
+			client.sendBYE();
+		} catch (IOException e) {
+			Log.error("BYE to %s failed: %s", client.getId(), e);
+		}
+		// The connection is closed once BYE has been written
+		client.closeWhenFlushed();
+		return true;
+	}
+		
+	/**
+	 * Creates a server-socket channel to listen on a given port and registers it
+	 * with a selector. Starts the worker loops that will own the connections.
+	 * 
+	 * @param port to listen on
+	 * @param workers number of worker loops
+	 * @throws IOException If an IO error occurs
+	 */
+	private static void setup(int port, int workers) throws IOException {
+		// Start the worker loops
+		loops = new EventLoop[workers];
+		for (int i = 0; i < workers; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].start();
+		}
+
+		// Create a ServerSocketChannel
+		ssc = ServerSocketChannel.open();
+		
+		// Set it to non-blocking
+		ssc.configureBlocking(false);
+		
+		// Get the Socket connected to this channel, and bind it to the
+		// listening port
+		// ss = ssc.socket();
+		InetSocketAddress isa = new InetSocketAddress(port);
+		// ss.bind(isa);
+		ssc.bind(isa);
+		
+		// Create a new Selector for selecting
+		selector = Selector.open();
+		
+		// Register the ServerSocketChannel, so we can listen for incoming
+		// connections
+		ssc.register(selector, SelectionKey.OP_ACCEPT);
+		Log.info("Listening on port %s with %s worker loops", port, workers);
+	}
+
+	/**
+	 * Pick the worker loop for a new connection. Takes the least loaded loop,
+	 * starting the search at a rotating index so ties are handed out
+	 * round-robin.
+	 * 
+	 * @return the loop
+	 */
+	private static EventLoop nextLoop() {
+		int start = nextLoop;
+		nextLoop = (nextLoop + 1) % loops.length;
+
+		EventLoop best = loops[start];
+		for (int i = 1; i < loops.length; i++) {
+			EventLoop loop = loops[(start + i) % loops.length];
+			if (loop.getConnections() < best.getConnections())
+				best = loop;
+		}
+		return best;
+	}
+
+	/**
+	 * Accept an incoming connection from a client. Configures it so it's
+	 * non-blocking and hands it to one of the worker loops.
+	 * 
+	 * @throws IOException
+	 * @throws ClosedChannelException
+	 */
+	private static void acceptConnection(SelectionKey key) throws IOException {
+		// It's an incoming connection. Register this socket with
+		// the Selector so we can listen for input on it.
+		// Socket s = ss.accept();
+		// System.out.println("Got connection from " + s);
+
+		// Make sure to make it non-blocking, so we can use a selector
+		// on it.
+		// SocketChannel sc = s.getChannel();
+		SocketChannel sc = ssc.accept();
+		if (sc == null)
+			return;
+		sc.configureBlocking(false);
+		Log.debug("Got connection from %s", sc);
+
+		// Register it with a worker loop, for reading
+		nextLoop().register(sc);
+	}
+
+	/**
+	 * Create a RemoteClient for a newly accepted channel. Runs on the
+	 * thread of the transport that owns the connection.
+	 * 
+	 * @param transport that owns the connection
+	 * @param sc the client's channel
+	 * @param key of the channel, if it is registered with a selector
+	 * @return the client
+	 */
+	static RemoteClient addClient(Transport transport, SocketChannel sc, SelectionKey key) {
+		// Create a new RemoteClient
+		RemoteClient client = new RemoteClient(transport, sc, key);
+		clients.add(client);
+		Metrics.connectionsOpened.increment();
+
+		Log.info("Client %s has connected", client.getId());
+		return client;
+	}
+
+	/**
+	 * Read incoming data from a given client.
+	 * 
+	 * @param loop that owns the connection
+	 * @param client
+	 */
+	static void readSocket(EventLoop loop, RemoteClient client) {
+		try {
+			// It's incoming data on a connection -- process it
+			boolean ok = processInput(loop, client);
+
+			// If the connection is dead, remove it from the selector
+			// and close it
+			if (!ok) {
+				close(client);
+			}
+		} catch (IOException ie) {
+			// On exception, remove this channel from the selector
+			close(client);
+		}
+	}
+	
+	/**
+	 * Closes a given socket.
+	 * 
+	 * @param s socket to close
+	 */
+	/*
+	private static void closeSocket(Socket s) {
+		try {
+			System.out.println("Closing connection to " + s);
+			s.close();
+		} catch (IOException ie) {
+			System.err.println("Error closing socket " + s + ": " + ie);
+		}
+	}*/
+
+	/**
+	 * Closes a client's channel and removes it from its transport
+	 * 
+	 * @param client whose channel to close
+	 */
+	static void close(RemoteClient client) {
+		if (!client.markClosed())
+			return;
+
+		client.getTransport().deregister(client);
+
+		// Don't leave dead clients behind in their room
+		if (client.getRoom() != null)
+			leaveRoom(client);
+		clients.remove(client);
+		Metrics.connectionsClosed.increment();
+
+		OutboundQueue outbound = client.getOutbound();
+		if (outbound.getDropped() > 0 || outbound.isOverflowed())
+			Log.log(Log.Level.WARN, outbound.isOverflowed() 
+				? "Client %s: dropped %s frames (%s bytes), disconnected for being too slow"
+				: "Client %s: dropped %s frames (%s bytes)",
+				client.getId(), outbound.getDropped(), outbound.getDroppedBytes());
+
+		try {
+			client.getChannel().close();
+			Log.info("Closing connection to client %s", client.getId());
+		} catch (IOException ie) {
+			Log.error("Error closing client %s: %s", client.getId(), ie);
+		}
+	}
+
+	/**
+	 * Register the gauges read from the managers and publish the metrics
+	 * through JMX.
+	 */
+	private static void registerMetrics() {
+		Metrics.gauge("connections.open", new Gauge() {
+			@Override
+			public long get() {
+				return clients.size();
+			}
+		});
+		Metrics.gauge("rooms.live", new Gauge() {
+			@Override
+			public long get() {
+				return rooms.getLiveRooms();
+			}
+		});
+		Metrics.gauge("rooms.created", new Gauge() {
+			@Override
+			public long get() {
+				return rooms.getCreatedRooms();
+			}
+		});
+		Metrics.gauge("rooms.evicted", new Gauge() {
+			@Override
+			public long get() {
+				return rooms.getEvictedRooms();
+			}
+		});
+		Metrics.gauge("outbound.dropped", new Gauge() {
+			@Override
+			public long get() {
+				return OutboundQueue.getTotalDropped();
+			}
+		});
+		Metrics.gauge("outbound.disconnects", new Gauge() {
+			@Override
+			public long get() {
+				return OutboundQueue.getTotalDisconnects();
+			}
+		});
+		Metrics.gauge("history.bytes", new Gauge() {
+			@Override
+			public long get() {
+				return RoomHistory.getTotalBytes();
+			}
+		});
+		Metrics.gauge("log.dropped", new Gauge() {
+			@Override
+			public long get() {
+				return Log.getDropped();
+			}
+		});
+		Metrics.gauge("buffers.outstanding", new Gauge() {
+			@Override
+			public long get() {
+				return buffers.getOutstanding();
+			}
+		});
+		Metrics.gauge("buffers.hits", new Gauge() {
+			@Override
+			public long get() {
+				return buffers.getHits();
+			}
+		});
+		Metrics.gauge("buffers.misses", new Gauge() {
+			@Override
+			public long get() {
+				return buffers.getMisses();
+			}
+		});
+		Metrics.gauge("buffers.free", new Gauge() {
+			@Override
+			public long get() {
+				return buffers.getFree();
+			}
+		});
+		if (cluster != null) {
+			Metrics.gauge("cluster.links", new Gauge() {
+				@Override
+				public long get() {
+					return cluster.getLinks();
+				}
+			});
+		}
+		Metrics.registerMBean();
+	}
+
+	public static void main(String args[]) throws Exception {
+		int port = Integer.parseInt(args[0]);
+
+		// Number of worker loops, defaults to the number of cores
+		int workers = Runtime.getRuntime().availableProcessors();
+		if (args.length > 1)
+			workers = Integer.parseInt(args[1]);
+
+		registerMetrics();
+
+		if (cluster != null)
+			cluster.start();
+
+		if (engine.equals("threads")) {
+			ThreadEngine.start(port);
+			return;
+		}
+
+		try {
+			setup(port, workers);
+
+			while (true) {
+
+				// See if we've had any activity -- either an incoming connection,
+				// or incoming data on an existing connection
+				int num = selector.select();
+
+				// If we don't have any activity, loop around and wait again
+				if (num == 0) {
+					continue;
+				}
+
+				// Get the keys corresponding to the activity that has been
+				// detected, and process them one by one
+				Set<SelectionKey> keys = selector.selectedKeys();
+				for (SelectionKey key : keys) {
+					if (key.isAcceptable()) {
+						acceptConnection(key);
+					}
+				}
+
+				// We remove the selected keys, because we've dealt with them.
+				keys.clear();
+			}
+		} catch (IOException ie) {
+			Log.error("Acceptor stopped: %s", ie);
+		}
+	}
+
+	/**
+	 * Log what a client did, at DEBUG. Off by default, and then costs no
+	 * more than the check.
+	 */
+	private static void log(RemoteClient client, String message) {
+		log(client, "%s", message, null);
+	}
+
+	private static void log(RemoteClient client, String format, Object arg) {
+		log(client, format, arg, null);
+	}
+
+	private static void log(RemoteClient client, String format, Object a, Object b) {
+		if (Log.isEnabled(Log.Level.DEBUG))
+			Log.log(Log.Level.DEBUG, "Client %s: " + format, client.getId(), a, b);
+	}
+
+}
\ No newline at end of file
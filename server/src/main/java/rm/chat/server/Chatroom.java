@@ -0,0 +1,305 @@
+package rm.chat.server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+import rm.chat.shared.Protocol;
+
+/**
+ * A room where users can see and chat with each other. Keeps a record of all the
+ * users in the room.
+ * 
+ * Members may live on different worker loops. They are kept in a concurrent
+ * set, so joining and leaving are constant time and the room's size can be
+ * read from any thread.
+ * 
+ * A room does no locking of its own. With sharded rooms only its shard's
+ * thread touches it; otherwise {@link ChatManager} holds the room's monitor
+ * around everything done to it. Either way joins, leaves and broadcasts
+ * happen one at a time, so every member sees the same order.
+ */
+public class Chatroom {
+
+    private static final AtomicInteger ID = new AtomicInteger();
+
+    private int id;
+    private String name;
+    private Set<RemoteClient> users;
+
+    // Recent chat messages, replayed to users joining
+    private final RoomHistory history;
+
+    // Every chat message said in the room, on disk, or null if logging is
+    // off. Opened on first use, so creating a room stays cheap.
+    private RoomLog log;
+    private boolean logOpened;
+
+    // Set once the room has been reclaimed, no one can join after that
+    private boolean closed;
+
+    /**
+     * Create a new empty chatroom.
+     */
+    public Chatroom() {
+        this.id = getNewId();
+        this.name = "Room " + this.id;
+        this.users = ConcurrentHashMap.newKeySet();
+        this.history = new RoomHistory(ChatServer.historySize, ChatServer.historyBytes);
+    }
+
+    /**
+     * Create a new empty chatroom with the given name.
+     * 
+     * @param name to give the room
+     */
+    public Chatroom(String name) {
+        this.id = getNewId();
+        this.name = name;
+        this.users = ConcurrentHashMap.newKeySet();
+        this.history = new RoomHistory(ChatServer.historySize, ChatServer.historyBytes);
+    }
+    
+    public int getId() {
+        return this.id;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public RoomHistory getHistory() {
+        return this.history;
+    }
+
+    /**
+     * Get the room's log, opening it on first use. Only called the way
+     * the room is used, and never once the room is closed.
+     * 
+     * @return the log, or null if logging is off or it can't be opened
+     */
+    public RoomLog getLog() {
+        if (!logOpened && !closed) {
+            logOpened = true;
+            this.log = openLog(this.name);
+        }
+        return this.log;
+    }
+
+    private static RoomLog openLog(String name) {
+        if (ChatServer.logDir == null)
+            return null;
+        try {
+            return RoomLog.forRoom(name);
+        } catch (IOException e) {
+            Log.error("Can't open log of %s: %s", name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Increment and return global ID.
+     * 
+     * @return ID given to the next user
+     */
+    private int getNewId() {
+        return ID.incrementAndGet();
+    }
+
+    /**
+     * Add a user to this room. The user is sent the last messages said
+     * in the room.
+     * 
+     * @param user
+     * @return False if the room was closed
+     */
+    public boolean addUser(RemoteClient user) throws IOException{
+        if (!addMember(user))
+            return false;
+        user.joinRoom(this.name);
+        return true;
+    }
+
+    /**
+     * Add a user to this room, leaving the user's own state alone. Used by
+     * the room's shard, the user was already moved when it joined.
+     * 
+     * @param user
+     * @return False if the room was closed
+     */
+    boolean addMember(RemoteClient user) throws IOException{
+        if (closed)
+            return false;
+        this.broadcast(new Message(
+            MessageType.JOINED,
+            user.getNick()
+        ));
+
+        // Between two broadcasts, so the replay and the live messages
+        // neither overlap nor leave a gap
+        users.add(user);
+        history.replay(user, ChatServer.historyReplay);
+        return true;
+    }
+
+    /**
+     * Remove a user to this room.
+     * 
+     * @param user
+     */
+    public void removeUser(RemoteClient user) throws IOException {
+        user.leaveRoom();
+        removeMember(user);
+    }
+
+    /**
+     * Remove a user from this room, leaving the user's own state alone.
+     * 
+     * @param user
+     */
+    void removeMember(RemoteClient user) throws IOException {
+        users.remove(user);
+        this.broadcast(new Message(
+            MessageType.LEFT,
+            user.getNick()
+        ));
+    }
+
+    /**
+     * Queue the last messages said in the room for a user. They come from
+     * the room's log if it has one, read straight from the mapped file for
+     * text users, otherwise from the recent history kept in memory.
+     * 
+     * @param user to send them to
+     * @param n - how many messages at most
+     */
+    public void sendHistory(RemoteClient user, int n) {
+        RoomLog log = getLog();
+        if (log == null) {
+            history.replay(user, n);
+            return;
+        }
+
+        for (Frame frame : log.last(n)) {
+            if (user.getProtocol() == Protocol.TEXT) {
+                user.sendFrame(frame);
+                continue;
+            }
+            // The log holds text frames, binary users get them re-encoded
+            String line = StandardCharsets.UTF_8.decode(frame.duplicate()).toString();
+            line = line.substring(0, line.length() - 1);
+            Frame binary = Frame.encode(Message.fromLine(line), Protocol.BINARY);
+            user.sendFrame(binary);
+            binary.release();
+        }
+    }
+
+    private void appendLog(RoomLog log, Frame frame) {
+        try {
+            log.append(frame);
+        } catch (IOException e) {
+            // Losing the log must not stop the chat
+            Log.error("Can't append to log of %s: %s", name, e);
+        }
+    }
+
+    public boolean isEmpty() {
+        return users.isEmpty();
+    }
+
+    /**
+     * Number of users in the room.
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Close the room if it is empty, letting go of its history and log.
+     * 
+     * @return True if the room was closed by this call
+     */
+    public boolean close() {
+        if (closed || !users.isEmpty())
+            return false;
+        closed = true;
+        history.clear();
+        if (log != null)
+            log.close();
+        return true;
+    }
+
+    /**
+     * Send a message to all the users in the room, and to the other
+     * nodes of the cluster that have the room.
+     * 
+     * @return True if all users got the message
+     */
+    public boolean broadcast(Message message) throws IOException{
+        return broadcast(message, true);
+    }
+
+    /**
+     * Send a message relayed by another node to the users in the room.
+     * 
+     * @return True if all users got the message
+     */
+    public boolean deliver(Message message) throws IOException{
+        return broadcast(message, false);
+    }
+
+    /**
+     * Send a message to all the users in the room. The message is
+     * encoded at most once per protocol and the same frame is queued
+     * for every user speaking it.
+     * 
+     * @param relay - True to relay the message to the other nodes
+     * @return True if all users got the message
+     */
+    private boolean broadcast(Message message, boolean relay) throws IOException{
+        Frame text = null;
+        Frame binary = null;
+
+        boolean result = true;
+        int sent = 0;
+        for(RemoteClient client : users) {
+            Frame frame;
+            if (client.getProtocol() == Protocol.BINARY) {
+                if (binary == null)
+                    binary = Frame.encode(message, Protocol.BINARY);
+                frame = binary;
+            } else {
+                if (text == null)
+                    text = Frame.encode(message, Protocol.TEXT);
+                frame = text;
+            }
+            if (frame == null || !client.sendFrame(frame))
+                result = false;
+            sent++;
+        }
+        Metrics.fanOut.record(sent);
+
+        if (relay && ChatServer.cluster != null)
+            ChatServer.cluster.relay(name, message);
+
+        // A closed room keeps nothing, it let go of its history and log
+        if (message.getType() == MessageType.MESSAGE && !closed) {
+            RoomLog log = getLog();
+            if (text == null && (binary == null || log != null))
+                text = Frame.encode(message, Protocol.TEXT);
+            history.add(message, text, binary);
+            if (log != null)
+                appendLog(log, text);
+        }
+        if (text != null)
+            text.release();
+        if (binary != null)
+            binary.release();
+        return result;    
+    }
+}
\ No newline at end of file
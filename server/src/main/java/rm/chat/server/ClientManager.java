@@ -0,0 +1,168 @@
+package rm.chat.server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import rm.chat.server.RemoteClient;
+
+/**
+ * Keep track of existing clients.
+ * Does username checks. Shared by every worker loop.
+ * 
+ * Clients are indexed both by id and by nickname, so looking a client
+ * up by either costs the same however many clients are connected.
+ * A nickname is claimed in the index before the client takes it, which
+ * is what makes two clients racing for the same name safe. In a cluster
+ * the nickname must then also be free on the other nodes, which may only
+ * be known once another node answers.
+ */
+public class ClientManager {
+	
+	private Map<Integer, RemoteClient> clients;
+	private Map<String, RemoteClient> nicks;
+	
+	public ClientManager() {
+		this.clients = new ConcurrentHashMap<>();
+		this.nicks = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Retrieve a RemoteClient by its Id
+	 * @param id
+	 * @return - the client
+	 */
+	public RemoteClient getClientById(Integer id) {
+		return clients.get(id);
+	}
+	
+	/**
+	 * Retrieve a RemoteClient by its nickname
+	 * @param name
+	 * @return - the client
+	 */
+	public RemoteClient getClientByName(String name) {
+		return nicks.get(name);
+	}
+	
+	/**
+	 * Add a new client
+	 * @param client
+	 */
+	public void add(RemoteClient client) {
+		clients.put(client.getId(), client);
+	}
+
+	/**
+	 * Remove a client and free its nickname
+	 * @param client
+	 */
+	public void remove(RemoteClient client) {
+		clients.remove(client.getId());
+		if (nicks.remove(client.getNick(), client) && ChatServer.cluster != null)
+			ChatServer.cluster.release(client.getNick());
+	}
+
+	/**
+	 * Nicknames of the connected clients
+	 */
+	public Set<String> getNicks() {
+		return nicks.keySet();
+	}
+
+	/**
+	 * Number of connected clients
+	 */
+	public int size() {
+		return clients.size();
+	}
+	
+	/**
+	 * Get the username associated with a given Id;
+	 * @param id
+	 * @return - the username
+	 */
+	public String getUsername(Integer id) {
+		return clients.get(id).getNick();
+	}
+	
+	/**
+	 * Set the username associated with a given id
+	 * @param id
+	 * @param name
+	 * @return - True if the username was available
+	 */
+	public boolean setUsername(Integer id, String name) {
+		RemoteClient client = clients.get(id);
+		if (client == null)
+			return false;
+		return setUsername(client, name);
+	}
+
+	/**
+	 * Set the username of a given client. In a cluster this waits for the
+	 * other nodes, the server itself uses {@link #claim(RemoteClient, String)}.
+	 * @param client
+	 * @param name
+	 * @return - True if the username was available
+	 */
+	public boolean setUsername(RemoteClient client, String name) {
+		if (!claim(client, name).join())
+			return false;
+		take(client, name);
+		return true;
+	}
+
+	/**
+	 * Claim a username for a client, without giving it to the client yet.
+	 * The name is reserved among this node's clients right away; in a
+	 * cluster its home node may have to be asked too. A successful claim
+	 * must be followed by {@link #take(RemoteClient, String)} or
+	 * {@link #drop(RemoteClient, String)}.
+	 * @param client
+	 * @param name
+	 * @return - completed with True if the username was available,
+	 * already completed unless another node was asked
+	 */
+	public CompletableFuture<Boolean> claim(final RemoteClient client, final String name) {
+		if (name.isEmpty() || nicks.putIfAbsent(name, client) != null) 
+			return CompletableFuture.completedFuture(false);
+		if (ChatServer.cluster == null)
+			return CompletableFuture.completedFuture(true);
+		return ChatServer.cluster.claim(name).thenApply(new Function<Boolean, Boolean>() {
+			@Override
+			public Boolean apply(Boolean granted) {
+				if (!granted)
+					nicks.remove(name, client);
+				return granted;
+			}
+		});
+	}
+
+	/**
+	 * Give a client the username it claimed, freeing its old one
+	 * @param client
+	 * @param name
+	 */
+	public void take(RemoteClient client, String name) {
+		String oldNick = client.getNick();
+		client.setNick(name);
+		if (nicks.remove(oldNick, client) && ChatServer.cluster != null)
+			ChatServer.cluster.release(oldNick);
+	}
+
+	/**
+	 * Give up a username a client claimed but won't take, such as when it
+	 * left before the claim was decided
+	 * @param client
+	 * @param name
+	 */
+	public void drop(RemoteClient client, String name) {
+		if (nicks.remove(name, client) && ChatServer.cluster != null)
+			ChatServer.cluster.release(name);
+	}
+
+	
+}
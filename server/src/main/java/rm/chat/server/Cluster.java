@@ -0,0 +1,453 @@
+package rm.chat.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+
+/**
+ * Several servers acting as one. Every node is given the same list of
+ * nodes, the address of each one's cluster port, and which of them it is.
+ * Each node connects to the nodes after it in the list and accepts the
+ * ones before it, so every pair of nodes has one {@link ClusterLink}.
+ * Broken links are dialled again every second.
+ *
+ * Rooms: a node tells the others which rooms it has. What is said in a
+ * room, joins, leaves and nick changes included, is relayed only to the
+ * nodes that have the room, and delivered there to its local members.
+ * Messages from one node arrive in the order they were said; messages
+ * from different nodes may interleave differently on each node.
+ *
+ * Nicks: every nick has a home node, picked by its hash, which decides
+ * who may take it. Taking a nick homed elsewhere asks the home node and
+ * fails if it doesn't answer within rm.chat.cluster.timeout milliseconds;
+ * nothing waits for the answer meanwhile. Nodes also tell each other which
+ * nicks their users hold, which is how a private message finds its way.
+ */
+public class Cluster {
+
+	private final String[] nodes;
+	private final int self;
+	private final ClientManager clients;
+	private final ChatManager rooms;
+
+	// Link to each node, null for this node and the ones not linked
+	private final AtomicReferenceArray<ClusterLink> links;
+
+	// Nicks homed at this node, and the node holding each
+	private final ConcurrentMap<String, Integer> directory;
+
+	// Nicks held on the other nodes, and the node holding each
+	private final ConcurrentMap<String, Integer> located;
+
+	// Rooms this node has, guarded by this. A room being reclaimed and the
+	// one replacing it can overlap, so they are counted.
+	private final Map<String, Integer> localRooms;
+
+	/**
+	 * @param nodes - host:port of every node's cluster port
+	 * @param self - index of this node
+	 * @param clients of this node
+	 * @param rooms of this node
+	 */
+	public Cluster(String[] nodes, int self, ClientManager clients, ChatManager rooms) {
+		if (self < 0 || self >= nodes.length)
+			throw new IllegalArgumentException("Node " + self + " is not one of the " + nodes.length + " nodes");
+		this.nodes = nodes;
+		this.self = self;
+		this.clients = clients;
+		this.rooms = rooms;
+		this.links = new AtomicReferenceArray<>(nodes.length);
+		this.directory = new ConcurrentHashMap<>();
+		this.located = new ConcurrentHashMap<>();
+		this.localRooms = new HashMap<>();
+	}
+
+	private static InetSocketAddress address(String node) {
+		int colon = node.lastIndexOf(':');
+		return new InetSocketAddress(node.substring(0, colon).trim(), Integer.parseInt(node.substring(colon + 1).trim()));
+	}
+
+	/**
+	 * Listen for the nodes before this one and start dialling the ones
+	 * after it.
+	 */
+	public void start() throws IOException {
+		final ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(address(nodes[self]).getPort()));
+		Log.log(Log.Level.INFO, "Node %s of %s, cluster port %s", self, nodes.length, server.getLocalPort());
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						accept(server.accept());
+					} catch (IOException e) {
+						Log.error("Cluster acceptor: %s", e);
+					}
+				}
+			}
+		}, "chat-cluster-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (int i = self + 1; i < nodes.length; i++) {
+			final int node = i;
+			Thread dialer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dial(node);
+				}
+			}, "chat-cluster-link-" + node);
+			dialer.setDaemon(true);
+			dialer.start();
+		}
+	}
+
+	/**
+	 * Take a connection from a node before this one and run its link on a
+	 * thread of its own.
+	 */
+	private void accept(final Socket socket) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					socket.setTcpNoDelay(true);
+					int node = handshake(socket);
+					if (node < 0 || node >= self)
+						throw new IOException("Unexpected node " + node);
+					new ClusterLink(Cluster.this, node, socket).run();
+				} catch (IOException e) {
+					Log.warn("Refused cluster connection from %s: %s", socket.getRemoteSocketAddress(), e);
+					try {
+						socket.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		}, "chat-cluster-accepted");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Keep a link to a node after this one, dialling it again whenever the
+	 * link is lost.
+	 */
+	private void dial(int node) {
+		InetSocketAddress address = address(nodes[node]);
+		while (true) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(address, (int) ChatServer.clusterTimeout);
+				socket.setTcpNoDelay(true);
+				if (handshake(socket) != node)
+					throw new IOException("Unexpected node at " + address);
+				new ClusterLink(this, node, socket).run();
+			} catch (IOException e) {
+				Log.debug("Can't link to node %s: %s", node, e);
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+			}
+
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Swap hellos with a node, making sure both were given the same number
+	 * of nodes.
+	 *
+	 * @return the other node's index
+	 */
+	private int handshake(Socket socket) throws IOException {
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.write(ClusterLink.encode(ClusterLink.HELLO, self, nodes.length));
+		out.flush();
+
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		if (in.readByte() != ClusterLink.HELLO)
+			throw new IOException("Not a cluster node");
+		int node = in.readInt();
+		if (in.readInt() != nodes.length)
+			throw new IOException("Node " + node + " has a different list of nodes");
+		return node;
+	}
+
+	/**
+	 * Start using a new link, and tell the node what this one has.
+	 */
+	void linkUp(final ClusterLink link) {
+		synchronized (this) {
+			ClusterLink old = links.getAndSet(link.getNode(), link);
+			if (old != null)
+				old.close();
+			for (String room : localRooms.keySet())
+				link.send(ClusterLink.encode(ClusterLink.INTEREST, room));
+			for (String nick : clients.getNicks())
+				link.send(ClusterLink.encode(ClusterLink.OWNER, nick, true));
+		}
+
+		// The node forgot the nicks it held for this one when the link was lost
+		for (final String nick : clients.getNicks()) {
+			if (home(nick) != link.getNode())
+				continue;
+			link.claim(nick).thenAccept(new Consumer<Boolean>() {
+				@Override
+				public void accept(Boolean granted) {
+					if (!granted && !link.isClosed())
+						Log.warn("Nick %s was taken on another node while node %s was away", nick, link.getNode());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Forget what a node told this one once its link is lost.
+	 */
+	void linkDown(ClusterLink link) {
+		int node = link.getNode();
+		if (!links.compareAndSet(node, link, null))
+			return;
+		Log.warn("Lost the link to node %s", node);
+
+		forget(directory, node);
+		forget(located, node);
+	}
+
+	private static void forget(Map<String, Integer> nicks, int node) {
+		Iterator<Integer> owners = nicks.values().iterator();
+		while (owners.hasNext()) {
+			if (owners.next() == node)
+				owners.remove();
+		}
+	}
+
+	/**
+	 * Number of nodes this one is linked to.
+	 */
+	public int getLinks() {
+		int count = 0;
+		for (int i = 0; i < links.length(); i++) {
+			if (links.get(i) != null)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Queue a frame for every linked node.
+	 */
+	private void sendAll(byte[] frame) {
+		for (int i = 0; i < links.length(); i++) {
+			ClusterLink link = links.get(i);
+			if (link != null)
+				link.send(frame);
+		}
+	}
+
+	/**
+	 * A room was created on this node.
+	 */
+	synchronized void roomOpened(String room) {
+		Integer count = localRooms.get(room);
+		localRooms.put(room, count == null ? 1 : count + 1);
+		if (count == null)
+			sendAll(ClusterLink.encode(ClusterLink.INTEREST, room));
+	}
+
+	/**
+	 * A room of this node was closed.
+	 */
+	synchronized void roomClosed(String room) {
+		Integer count = localRooms.get(room);
+		if (count == null)
+			return;
+		if (count > 1) {
+			localRooms.put(room, count - 1);
+			return;
+		}
+		localRooms.remove(room);
+		sendAll(ClusterLink.encode(ClusterLink.UNINTEREST, room));
+	}
+
+	/**
+	 * Relay something said in a room to the nodes that have the room.
+	 * Called by the room while it broadcasts, so the nodes get its
+	 * messages in the same order as its local members.
+	 */
+	void relay(String room, Message message) {
+		byte[] frame = null;
+		for (int i = 0; i < links.length(); i++) {
+			ClusterLink link = links.get(i);
+			if (link == null || !link.isInterested(room))
+				continue;
+			if (frame == null)
+				frame = ClusterLink.encode(ClusterLink.ROOM, room, message.getType().getTag(),
+					message.getUser(), message.getMessage());
+			link.send(frame);
+		}
+	}
+
+	/**
+	 * Deliver something said in a room of another node to the room's
+	 * local members.
+	 */
+	void deliver(String name, final Message message) {
+		rooms.withRoom(name, new ChatManager.RoomAction() {
+			@Override
+			public void run(Chatroom room) throws IOException {
+				room.deliver(message);
+			}
+		});
+	}
+
+	/**
+	 * The node that decides who holds a nick.
+	 */
+	int home(String nick) {
+		return Math.floorMod(nick.hashCode(), nodes.length);
+	}
+
+	/**
+	 * Take a nick for a user of this node, asking its home node if it is
+	 * another one. Never blocks; a nick homed here is decided right away,
+	 * otherwise the answer comes on the link's thread.
+	 *
+	 * @param nick - already reserved among this node's users
+	 * @return completed with True if the nick was free in the whole cluster
+	 */
+	CompletableFuture<Boolean> claim(final String nick) {
+		int home = home(nick);
+		if (home == self)
+			return CompletableFuture.completedFuture(claimed(nick, grant(nick, self)));
+
+		final ClusterLink link = links.get(home);
+		if (link == null)
+			return CompletableFuture.completedFuture(false);
+		final CompletableFuture<Boolean> result = link.claim(nick);
+		return result.orTimeout(ChatServer.clusterTimeout, TimeUnit.MILLISECONDS)
+			.handle(new BiFunction<Boolean, Throwable, Boolean>() {
+				@Override
+				public Boolean apply(Boolean granted, Throwable failure) {
+					if (failure != null) {
+						link.forgetClaim(result);
+						// In case the grant is only late
+						link.send(ClusterLink.encode(ClusterLink.RELEASE, nick));
+						return false;
+					}
+					return claimed(nick, granted);
+				}
+			});
+	}
+
+	/**
+	 * Tell the other nodes a user of this one holds a nick, if it got it.
+	 */
+	private boolean claimed(String nick, boolean granted) {
+		if (granted) {
+			synchronized (this) {
+				sendAll(ClusterLink.encode(ClusterLink.OWNER, nick, true));
+			}
+		}
+		return granted;
+	}
+
+	/**
+	 * Give up a nick a user of this node held.
+	 */
+	void release(String nick) {
+		int home = home(nick);
+		if (home == self) {
+			revoke(nick, self);
+		} else {
+			ClusterLink link = links.get(home);
+			if (link != null)
+				link.send(ClusterLink.encode(ClusterLink.RELEASE, nick));
+		}
+		synchronized (this) {
+			sendAll(ClusterLink.encode(ClusterLink.OWNER, nick, false));
+		}
+	}
+
+	/**
+	 * Decide a claim for a nick homed at this node.
+	 *
+	 * @param nick
+	 * @param node asking for it
+	 * @return True if the node may have it
+	 */
+	boolean grant(String nick, int node) {
+		Integer owner = directory.putIfAbsent(nick, node);
+		return owner == null || owner == node;
+	}
+
+	/**
+	 * A node gave back a nick homed at this node.
+	 */
+	void revoke(String nick, int node) {
+		directory.remove(nick, node);
+	}
+
+	/**
+	 * A node took or gave up a nick.
+	 */
+	void located(String nick, int node, boolean held) {
+		if (held)
+			located.put(nick, node);
+		else
+			located.remove(nick, node);
+	}
+
+	/**
+	 * Send a private message to a user of another node.
+	 *
+	 * @return False if no node has a user with that nick
+	 */
+	boolean sendPrivate(String from, String to, String text) {
+		Integer node = located.get(to);
+		ClusterLink link = node == null ? null : links.get(node);
+		if (link == null)
+			return false;
+		link.send(ClusterLink.encode(ClusterLink.PRIV, from, to, text));
+		return true;
+	}
+
+	/**
+	 * Deliver a private message from a user of another node.
+	 */
+	void deliverPrivate(String from, String to, String text) {
+		RemoteClient client = clients.getClientByName(to);
+		if (client == null)
+			return;
+		try {
+			client.sendMessage(new Message(MessageType.PRIV, String.format("From %s:", from), text));
+		} catch (IOException e) {
+			Log.error("Private message to %s failed: %s", client.getId(), e);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package rm.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+
+/**
+ * The connection to another node of the {@link Cluster}.
+ *
+ * A frame is a type byte followed by its fields, strings as a length and
+ * their UTF-8 bytes. Frames to send are queued and written by the link's
+ * writer thread, so relaying never blocks the caller. A node that falls so
+ * far behind that its queue fills is disconnected, and brought up to date
+ * again when it reconnects. The link's reader thread hands what it reads
+ * to the cluster.
+ */
+public class ClusterLink {
+
+	// First frame on a new link: node index, number of nodes
+	static final byte HELLO = 1;
+	// The peer has, or no longer has, a room: room
+	static final byte INTEREST = 2;
+	static final byte UNINTEREST = 3;
+	// Something said in a room: room, type tag, user, text
+	static final byte ROOM = 4;
+	// Ask the nick's home node for it: claim id, nick
+	static final byte CLAIM = 5;
+	// Answer to a claim: claim id, granted
+	static final byte CLAIMED = 6;
+	// Give a nick back to its home node: nick
+	static final byte RELEASE = 7;
+	// A user of the peer took, or gave up, a nick: nick, held
+	static final byte OWNER = 8;
+	// A private message for a user of the peer: from, to, text
+	static final byte PRIV = 9;
+
+	// Longest string accepted from a peer
+	private static final int MAX_STRING = 1 << 24;
+
+	// Most frames written before a flush
+	private static final int BATCH = 1024;
+
+	private static final AtomicLong CLAIM_ID = new AtomicLong();
+
+	private final Cluster cluster;
+	private final int node;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final BlockingQueue<byte[]> queue;
+	private final AtomicBoolean closed;
+	private Thread writer;
+
+	// Rooms the peer has, the only ones relayed to it
+	private final Set<String> interest;
+
+	// Claims sent to the peer, waiting for an answer
+	private final Map<Long, CompletableFuture<Boolean>> claims;
+
+	/**
+	 * @param cluster this node belongs to
+	 * @param node - index of the peer
+	 * @param socket - connected, past the hellos
+	 */
+	ClusterLink(Cluster cluster, int node, Socket socket) throws IOException {
+		this.cluster = cluster;
+		this.node = node;
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+		this.queue = new ArrayBlockingQueue<>(ChatServer.clusterQueue);
+		this.closed = new AtomicBoolean();
+		this.interest = ConcurrentHashMap.newKeySet();
+		this.claims = new ConcurrentHashMap<>();
+	}
+
+	public int getNode() {
+		return this.node;
+	}
+
+	public boolean isInterested(String room) {
+		return interest.contains(room);
+	}
+
+	/**
+	 * Encode a frame.
+	 *
+	 * @param type of the frame
+	 * @param fields - Strings, Integers, Longs, Booleans and Bytes
+	 * @return the frame
+	 */
+	static byte[] encode(byte type, Object... fields) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream data = new DataOutputStream(bytes);
+		try {
+			data.writeByte(type);
+			for (Object field : fields) {
+				if (field instanceof String) {
+					byte[] utf8 = ((String) field).getBytes(StandardCharsets.UTF_8);
+					data.writeInt(utf8.length);
+					data.write(utf8);
+				} else if (field instanceof Integer) {
+					data.writeInt((Integer) field);
+				} else if (field instanceof Long) {
+					data.writeLong((Long) field);
+				} else if (field instanceof Boolean) {
+					data.writeBoolean((Boolean) field);
+				} else {
+					data.writeByte((Byte) field);
+				}
+			}
+		} catch (IOException e) {
+			// Not thrown by a byte array
+		}
+		return bytes.toByteArray();
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_STRING)
+			throw new IOException("Bad string length " + length);
+		byte[] utf8 = new byte[length];
+		in.readFully(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Queue a frame for the peer. Never blocks.
+	 *
+	 * @param frame - encoded, may be shared with other links
+	 */
+	public void send(byte[] frame) {
+		if (closed.get())
+			return;
+		if (!queue.offer(frame)) {
+			Log.warn("Node %s fell %s frames behind, dropping the link", node, queue.size());
+			close();
+			return;
+		}
+		Metrics.clusterFramesOut.increment();
+	}
+
+	/**
+	 * Ask the peer, the nick's home node, for a nick.
+	 *
+	 * @param nick
+	 * @return completed with True if the nick was granted
+	 */
+	CompletableFuture<Boolean> claim(String nick) {
+		long id = CLAIM_ID.incrementAndGet();
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		claims.put(id, result);
+		send(encode(CLAIM, id, nick));
+		if (closed.get())
+			result.complete(false);
+		return result;
+	}
+
+	/**
+	 * Stop waiting for a claim's answer.
+	 */
+	void forgetClaim(CompletableFuture<Boolean> result) {
+		claims.values().remove(result);
+	}
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Run the link: start the writer and read on the calling thread until
+	 * the link fails.
+	 */
+	void run() {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "chat-cluster-writer-" + node);
+		writer.setDaemon(true);
+		writer.start();
+
+		Log.info("Linked to node %s at %s", node, socket.getRemoteSocketAddress());
+		cluster.linkUp(this);
+		try {
+			while (true)
+				read();
+		} catch (IOException e) {
+			if (!closed.get())
+				Log.warn("Link to node %s failed: %s", node, e);
+		}
+		close();
+	}
+
+	/**
+	 * Read a frame and act on it.
+	 */
+	private void read() throws IOException {
+		byte type = in.readByte();
+		Metrics.clusterFramesIn.increment();
+		switch (type) {
+			case INTEREST:
+				interest.add(readString(in));
+				break;
+			case UNINTEREST:
+				interest.remove(readString(in));
+				break;
+			case ROOM: {
+				String room = readString(in);
+				MessageType messageType = MessageType.fromTag(in.readByte());
+				String user = readString(in);
+				String text = readString(in);
+				if (messageType == null)
+					throw new IOException("Unknown message type");
+				cluster.deliver(room, new Message(messageType, user, text));
+				break;
+			}
+			case CLAIM: {
+				long id = in.readLong();
+				boolean granted = cluster.grant(readString(in), node);
+				send(encode(CLAIMED, id, granted));
+				break;
+			}
+			case CLAIMED: {
+				long id = in.readLong();
+				boolean granted = in.readBoolean();
+				CompletableFuture<Boolean> result = claims.remove(id);
+				if (result != null)
+					result.complete(granted);
+				break;
+			}
+			case RELEASE:
+				cluster.revoke(readString(in), node);
+				break;
+			case OWNER: {
+				String nick = readString(in);
+				cluster.located(nick, node, in.readBoolean());
+				break;
+			}
+			case PRIV: {
+				String from = readString(in);
+				String to = readString(in);
+				cluster.deliverPrivate(from, to, readString(in));
+				break;
+			}
+			default:
+				throw new IOException("Unknown frame type " + type);
+		}
+	}
+
+	/**
+	 * Write queued frames, flushing whenever the queue runs dry.
+	 */
+	private void write() {
+		List<byte[]> batch = new ArrayList<>(BATCH);
+		try {
+			while (!closed.get()) {
+				batch.add(queue.take());
+				queue.drainTo(batch, BATCH - 1);
+				for (byte[] frame : batch)
+					out.write(frame);
+				batch.clear();
+				if (queue.isEmpty())
+					out.flush();
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		} catch (IOException e) {
+			if (!closed.get())
+				Log.warn("Link to node %s failed: %s", node, e);
+		}
+		close();
+	}
+
+	/**
+	 * Close the link. Claims still waiting on it are refused.
+	 */
+	public void close() {
+		if (!closed.compareAndSet(false, true))
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		if (writer != null)
+			writer.interrupt();
+		queue.clear();
+		for (CompletableFuture<Boolean> result : claims.values())
+			result.complete(false);
+		claims.clear();
+		cluster.linkDown(this);
+	}
+}
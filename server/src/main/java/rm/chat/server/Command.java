@@ -0,0 +1,19 @@
+package rm.chat.server;
+
+import java.io.IOException;
+
+/**
+ * Handler of a user command, registered in a {@link CommandTable}.
+ */
+public interface Command {
+
+	/**
+	 * Run the command. The number of arguments has already been checked.
+	 *
+	 * @param client who sent the command
+	 * @param line - the parsed command line
+	 * @return True to answer OK, false to answer ERROR
+	 * @throws IOException
+	 */
+	boolean run(RemoteClient client, CommandLine line) throws IOException;
+}
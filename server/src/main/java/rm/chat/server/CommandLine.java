@@ -0,0 +1,120 @@
+package rm.chat.server;
+
+/**
+ * A command line split into words where it lies. Parsing only records where
+ * each word starts and ends, nothing is copied until a handler asks for an
+ * argument. Words are separated by one or more spaces.
+ *
+ * One instance is reused for every line parsed on a thread.
+ */
+public class CommandLine {
+
+	// Words whose bounds are kept, the command included; the count goes on
+	private static final int MAX_WORDS = 8;
+
+	private final int[] starts = new int[MAX_WORDS];
+	private final int[] ends = new int[MAX_WORDS];
+	private String line;
+	private int words;
+
+	/**
+	 * Split a line into words.
+	 *
+	 * @param line - the command and its arguments, without its terminator
+	 * @return this
+	 */
+	public CommandLine parse(String line) {
+		this.line = line;
+		this.words = 0;
+
+		int length = line.length();
+		int i = 0;
+		while (true) {
+			while (i < length && line.charAt(i) == ' ')
+				i++;
+			if (i == length)
+				break;
+
+			int start = i;
+			while (i < length && line.charAt(i) != ' ')
+				i++;
+			if (words < MAX_WORDS) {
+				starts[words] = start;
+				ends[words] = i;
+			}
+			words++;
+		}
+		return this;
+	}
+
+	/**
+	 * Test if the command is the given one, without copying it.
+	 */
+	public boolean isCommand(String name) {
+		return words > 0
+			&& ends[0] - starts[0] == name.length()
+			&& line.regionMatches(starts[0], name, 0, name.length());
+	}
+
+	/**
+	 * Number of arguments after the command.
+	 */
+	public int argCount() {
+		return Math.max(0, words - 1);
+	}
+
+	/**
+	 * Get an argument.
+	 *
+	 * @param i - index of the argument, 0 for the first after the command
+	 * @return the argument
+	 */
+	public String arg(int i) {
+		check(i);
+		return line.substring(starts[i + 1], ends[i + 1]);
+	}
+
+	/**
+	 * Get the rest of the line from an argument on, spacing included.
+	 *
+	 * @param i - index of the first argument
+	 * @return the text
+	 */
+	public String rest(int i) {
+		check(i);
+		return line.substring(starts[i + 1]);
+	}
+
+	/**
+	 * Read an argument as a number, without copying it.
+	 *
+	 * @param i - index of the argument
+	 * @return the number, or -1 if it isn't a non-negative int
+	 */
+	public int intArg(int i) {
+		check(i);
+		int start = starts[i + 1];
+		int end = ends[i + 1];
+		if (end - start > 9)
+			return -1;
+
+		int value = 0;
+		for (int k = start; k < end; k++) {
+			char c = line.charAt(k);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private void check(int i) {
+		if (i < 0 || i >= argCount() || i + 1 >= MAX_WORDS)
+			throw new IndexOutOfBoundsException("No argument " + i);
+	}
+
+	@Override
+	public String toString() {
+		return line;
+	}
+}
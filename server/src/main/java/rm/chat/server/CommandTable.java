@@ -0,0 +1,81 @@
+package rm.chat.server;
+
+import java.io.IOException;
+
+/**
+ * The commands users can send, each with its handler and the number of
+ * arguments it takes. A line is parsed in place and matched against the
+ * registered names without copying it, so dispatching allocates nothing.
+ */
+public class CommandTable {
+
+	private static final class Entry {
+		final String name;
+		final int minArgs;
+		final int maxArgs;
+		final Command command;
+		final Counter count;
+
+		Entry(String name, int minArgs, int maxArgs, Command command) {
+			this.name = name;
+			this.minArgs = minArgs;
+			this.maxArgs = maxArgs;
+			this.command = command;
+			this.count = Metrics.counter("commands." + name.substring(1));
+		}
+	}
+
+	// Parsed lines, one per thread reading from clients
+	private static final ThreadLocal<CommandLine> lines = new ThreadLocal<CommandLine>() {
+		@Override
+		protected CommandLine initialValue() {
+			return new CommandLine();
+		}
+	};
+
+	private volatile Entry[] entries = new Entry[0];
+
+	/**
+	 * Register a command. Meant to be called while the server starts.
+	 *
+	 * @param name - the command, with its slash
+	 * @param minArgs - fewest arguments it takes
+	 * @param maxArgs - most arguments it takes, Integer.MAX_VALUE for any
+	 * @param command - its handler
+	 */
+	public synchronized void register(String name, int minArgs, int maxArgs, Command command) {
+		Entry[] bigger = new Entry[entries.length + 1];
+		System.arraycopy(entries, 0, bigger, 0, entries.length);
+		bigger[entries.length] = new Entry(name, minArgs, maxArgs, command);
+		entries = bigger;
+	}
+
+	/**
+	 * Run a command line sent by a client.
+	 *
+	 * @param client who sent it
+	 * @param text - the line, starting with the command
+	 * @return False if the command is unknown, has the wrong number of
+	 * arguments, or failed
+	 * @throws IOException
+	 */
+	public boolean dispatch(RemoteClient client, String text) throws IOException {
+		CommandLine line = lines.get().parse(text);
+		for (Entry entry : entries) {
+			if (!line.isCommand(entry.name))
+				continue;
+
+			entry.count.increment();
+			if (Log.isEnabled(Log.Level.DEBUG))
+				Log.debug("Client %s: command %s", client.getId(), entry.name);
+
+			int args = line.argCount();
+			if (args < entry.minArgs || args > entry.maxArgs)
+				return false;
+			return entry.command.run(client, line);
+		}
+
+		Metrics.commandsUnknown.increment();
+		return false;
+	}
+}
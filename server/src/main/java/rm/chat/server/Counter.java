@@ -0,0 +1,24 @@
+package rm.chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up. Any number of threads may add to it at once
+ * without contending.
+ */
+public class Counter {
+
+	private final LongAdder count = new LongAdder();
+
+	public void increment() {
+		count.increment();
+	}
+
+	public void add(long n) {
+		count.add(n);
+	}
+
+	public long get() {
+		return count.sum();
+	}
+}
@@ -0,0 +1,213 @@
+package rm.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A worker event loop. Owns a selector and every connection registered
+ * with it; all reads for those connections happen on this loop's thread.
+ * Other threads hand work to the loop through {@link #execute(Runnable)}.
+ * Each loop has a {@link TimerWheel} for the heartbeats of its clients.
+ */
+public class EventLoop implements Runnable, Transport {
+
+	private final int index;
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final AtomicInteger connections;
+	private Thread thread;
+
+	// Clients with frames queued since the last flush, loop thread only
+	private final ArrayDeque<RemoteClient> dirty;
+
+	// Timeouts of the loop's clients, loop thread only
+	private final TimerWheel timers;
+
+	// A buffer for the data received on this loop, leased for the loop's life
+	final ByteBuffer buffer = ChatServer.buffers.lease(16384);
+
+	public EventLoop(int index) throws IOException {
+		this.index = index;
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.connections = new AtomicInteger();
+		this.dirty = new ArrayDeque<>();
+		this.timers = new TimerWheel(512, ChatServer.timerTick * 1000000);
+	}
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Number of connections currently owned by this loop.
+	 */
+	public int getConnections() {
+		return this.connections.get();
+	}
+
+	/**
+	 * Test if the calling thread is this loop's thread.
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * Start the loop on a new thread.
+	 */
+	public void start() {
+		this.thread = new Thread(this, "chat-loop-" + index);
+		this.thread.start();
+	}
+
+	/**
+	 * Run a task on this loop's thread.
+	 *
+	 * @param task to run
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Hand a freshly accepted channel to this loop. The channel is registered
+	 * with the loop's selector from the loop's own thread.
+	 *
+	 * @param sc accepted, non-blocking channel
+	 */
+	public void register(final SocketChannel sc) {
+		connections.incrementAndGet();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+					RemoteClient client = ChatServer.addClient(EventLoop.this, sc, key);
+
+					// Attach this clients Id to his key
+					key.attach(client.getId());
+					if (Heartbeat.isEnabled())
+						client.getHeartbeat().start(timers);
+				} catch (ClosedChannelException e) {
+					connections.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Make sure a client's queued frames get written. The flush happens at
+	 * the end of the current loop iteration, never while the caller is
+	 * still broadcasting. Safe to call from any thread.
+	 * 
+	 * @param client owned by this loop
+	 */
+	@Override
+	public void scheduleFlush(final RemoteClient client) {
+		if (!client.markFlushScheduled())
+			return;
+
+		if (inLoop()) {
+			dirty.add(client);
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					dirty.add(client);
+				}
+			});
+		}
+	}
+
+	private void flushDirty() {
+		RemoteClient client;
+		while ((client = dirty.poll()) != null) {
+			client.clearFlushScheduled();
+			flush(client);
+		}
+	}
+
+	/**
+	 * Write a client's pending messages, closing the connection if the write
+	 * fails or the client is done. Must be called from this loop's thread.
+	 * 
+	 * @param client owned by this loop
+	 */
+	void flush(RemoteClient client) {
+		if (client.isClosed())
+			return;
+
+		try {
+			if (client.flush() && client.isClosing())
+				ChatServer.close(client);
+		} catch (IOException e) {
+			ChatServer.close(client);
+		}
+	}
+
+	@Override
+	public void deregister(final RemoteClient client) {
+		if (inLoop()) {
+			client.getHeartbeat().stop();
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					client.getHeartbeat().stop();
+				}
+			});
+		}
+		client.getKey().cancel();
+		client.releaseFrames();
+		connections.decrementAndGet();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				// Wake up in time for the next tick if anything is timed
+				selector.select(timers.size() == 0 ? 0 : timers.getTickMillis());
+				long start = System.nanoTime();
+				runTasks();
+				timers.advance(start);
+
+				Set<SelectionKey> keys = selector.selectedKeys();
+				for (SelectionKey key : keys) {
+					RemoteClient client = ChatServer.getClient(key);
+					if (key.isValid() && key.isWritable()) {
+						flush(client);
+					}
+					if (key.isValid() && key.isReadable()) {
+						ChatServer.readSocket(this, client);
+					}
+				}
+				keys.clear();
+
+				flushDirty();
+				Metrics.loopNanos.record(System.nanoTime() - start);
+			}
+		} catch (IOException ie) {
+			Log.error("%s stopped: %s", thread.getName(), ie);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package rm.chat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rm.chat.shared.BinaryCodec;
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+import rm.chat.shared.Protocol;
+
+/**
+ * A message encoded for the wire, in the text or the binary protocol.
+ * The encoded bytes are read-only, so one
+ * frame can be queued for any number of clients; each client writes it
+ * from its own duplicate of the buffer.
+ * 
+ * Frames are encoded into direct buffers leased from the server's
+ * {@link BufferPool} and are reference counted. Whoever encodes a frame
+ * holds one reference, every queue holding it takes another, and the
+ * buffer goes back to the pool when the last one is released.
+ */
+public class Frame {
+
+	// Frames that carry nothing but their type
+	public static final Frame OK = encodeStatic(new Message(MessageType.OK), Protocol.TEXT);
+	public static final Frame ERROR = encodeStatic(new Message(MessageType.ERROR), Protocol.TEXT);
+	public static final Frame BYE = encodeStatic(new Message(MessageType.BYE), Protocol.TEXT);
+	public static final Frame PING = encodeStatic(new Message(MessageType.PING), Protocol.TEXT);
+	private static final Frame BINARY_OK = encodeStatic(new Message(MessageType.OK), Protocol.BINARY);
+	private static final Frame BINARY_ERROR = encodeStatic(new Message(MessageType.ERROR), Protocol.BINARY);
+	private static final Frame BINARY_BYE = encodeStatic(new Message(MessageType.BYE), Protocol.BINARY);
+	private static final Frame BINARY_PING = encodeStatic(new Message(MessageType.PING), Protocol.BINARY);
+
+	// Encoders aren't thread safe, keep one per thread
+	private static final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() {
+		@Override
+		protected CharsetEncoder initialValue() {
+			return StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	private final MessageType type;
+	private final ByteBuffer data;
+
+	// The leased buffer behind data, null if the frame is never released
+	private final ByteBuffer leased;
+	private final AtomicInteger refs;
+
+	private Frame(MessageType type, ByteBuffer data, ByteBuffer leased) {
+		this.type = type;
+		this.data = data.asReadOnlyBuffer();
+		this.leased = leased;
+		this.refs = new AtomicInteger(1);
+	}
+
+	/**
+	 * Format a message as a newline terminated line of text.
+	 *
+	 * @return the text, or null if the message type can't be sent
+	 */
+	private static String format(Message message) {
+		switch(message.getType()) {
+			case MESSAGE:
+			case PRIV:
+				return String.format("MESSAGE %s %s\n", message.getUser(), oneLine(message.getMessage()));
+			case BYE:
+				return "BYE\n";
+			case PING:
+				return "PING\n";
+			case ERROR:
+				return "ERROR\n";
+			case OK:
+				return "OK\n";
+			case JOINED:
+				return String.format("JOINED %s\n", message.getMessage());
+			case LEFT:
+				return String.format("LEFT %s\n", message.getMessage());
+			case NEWNICK:
+				return String.format("NEWNICK %s %s\n", message.getMessage(), message.getUser());
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Text frames end at a newline, so a binary client's multi-line
+	 * message has to be flattened for text clients.
+	 */
+	private static String oneLine(String text) {
+		if (text.indexOf('\n') < 0)
+			return text;
+		return text.replace('\n', ' ');
+	}
+
+	/**
+	 * Get the shared frame for OK, ERROR, BYE or PING.
+	 *
+	 * @param type of the frame
+	 * @param protocol to encode it in
+	 * @return the frame, which is never released
+	 */
+	public static Frame status(MessageType type, Protocol protocol) {
+		boolean binary = protocol == Protocol.BINARY;
+		switch (type) {
+			case OK:
+				return binary ? BINARY_OK : OK;
+			case ERROR:
+				return binary ? BINARY_ERROR : ERROR;
+			case BYE:
+				return binary ? BINARY_BYE : BYE;
+			case PING:
+				return binary ? BINARY_PING : PING;
+			default:
+				throw new IllegalArgumentException(type.toString());
+		}
+	}
+
+	/**
+	 * Encode a message in the text protocol.
+	 *
+	 * @see #encode(Message, Protocol)
+	 */
+	public static Frame encode(Message message) {
+		return encode(message, Protocol.TEXT);
+	}
+
+	/**
+	 * Encode a message into a pooled buffer. The caller holds the only
+	 * reference and must {@link #release()} it when done with the frame.
+	 *
+	 * @param message to encode
+	 * @param protocol to encode it in
+	 * @return the frame, or null if the message type can't be sent
+	 */
+	public static Frame encode(Message message, Protocol protocol) {
+		if (protocol == Protocol.BINARY) {
+			ByteBuffer buffer = ChatServer.buffers.lease(BinaryCodec.encodedLength(message));
+			BinaryCodec.encode(message, buffer);
+			buffer.flip();
+			return new Frame(message.getType(), buffer.slice(), buffer);
+		}
+
+		String msg = format(message);
+		if (msg == null)
+			return null;
+
+		// A char never takes more than three bytes in UTF-8
+		ByteBuffer buffer = ChatServer.buffers.lease(msg.length() * 3);
+		CharsetEncoder encoder = encoders.get();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(msg), buffer, true);
+		encoder.flush(buffer);
+		buffer.flip();
+		return new Frame(message.getType(), buffer.slice(), buffer);
+	}
+
+	/**
+	 * Wrap bytes that are already encoded, such as a record of a room's
+	 * log. The frame is never released and the bytes must not change.
+	 *
+	 * @param type of the message in the bytes
+	 * @param data - the encoded frame
+	 */
+	public static Frame wrap(MessageType type, ByteBuffer data) {
+		return new Frame(type, data, null);
+	}
+
+	/**
+	 * Encode a frame that lives as long as the server.
+	 */
+	private static Frame encodeStatic(Message message, Protocol protocol) {
+		ByteBuffer bytes = protocol == Protocol.BINARY 
+			? BinaryCodec.encode(message) 
+			: ByteBuffer.wrap(format(message).getBytes(StandardCharsets.UTF_8));
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.remaining());
+		buffer.put(bytes).flip();
+		return new Frame(message.getType(), buffer, null);
+	}
+
+	public MessageType getType() {
+		return this.type;
+	}
+
+	/**
+	 * Size of the frame in bytes.
+	 */
+	public int length() {
+		return this.data.capacity();
+	}
+
+	/**
+	 * Memory the frame pins while it is held: the whole leased buffer,
+	 * which is usually bigger than the frame itself.
+	 */
+	public int footprint() {
+		return leased == null ? this.data.capacity() : leased.capacity();
+	}
+
+	/**
+	 * A fresh view of the frame's bytes, positioned at the start.
+	 */
+	ByteBuffer duplicate() {
+		return this.data.duplicate();
+	}
+
+	/**
+	 * Take another reference to the frame.
+	 */
+	public Frame retain() {
+		if (leased != null)
+			refs.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Drop a reference to the frame. The last one gives the buffer back
+	 * to the pool.
+	 */
+	public void release() {
+		if (leased != null && refs.decrementAndGet() == 0)
+			ChatServer.buffers.release(leased);
+	}
+}
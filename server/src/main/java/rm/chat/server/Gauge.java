@@ -0,0 +1,9 @@
+package rm.chat.server;
+
+/**
+ * A value read when the metrics are, such as the number of live rooms.
+ */
+public interface Gauge {
+
+	long get();
+}
@@ -0,0 +1,89 @@
+package rm.chat.server;
+
+/**
+ * Watches a client for silence. Anything the client sends counts as
+ * activity. After rm.chat.pingInterval milliseconds without any, the
+ * client is sent PING, and again every interval while it stays quiet;
+ * clients answer with an empty line. After rm.chat.idleTimeout
+ * milliseconds without any, the connection is taken for dead and closed
+ * like any other, leaving its room on the way out.
+ *
+ * Reads only note the time. The timeout fires at the earliest moment
+ * something could be due and then looks at when the client last spoke,
+ * scheduling itself again if it isn't due yet.
+ */
+class Heartbeat extends TimerWheel.Timeout {
+
+	private final RemoteClient client;
+	private TimerWheel wheel;
+	private long lastPing;
+
+	Heartbeat(RemoteClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Test if either the ping or the idle timeout is on.
+	 */
+	static boolean isEnabled() {
+		return ChatServer.pingInterval > 0 || ChatServer.idleTimeout > 0;
+	}
+
+	/**
+	 * Start watching the client, on the thread that owns the wheel.
+	 */
+	void start(TimerWheel wheel) {
+		this.wheel = wheel;
+		this.lastPing = client.getLastRead();
+		wheel.schedule(this, next(client.getLastRead()));
+	}
+
+	/**
+	 * Stop watching the client, on the thread that owns the wheel.
+	 */
+	void stop() {
+		if (wheel != null)
+			wheel.cancel(this);
+	}
+
+	/**
+	 * The earliest time a ping or the idle timeout could be due.
+	 */
+	private long next(long lastRead) {
+		long deadline = Long.MAX_VALUE;
+		if (ChatServer.idleTimeout > 0)
+			deadline = lastRead + ChatServer.idleTimeout * 1000000;
+		if (ChatServer.pingInterval > 0) {
+			long ping = ChatServer.pingInterval * 1000000;
+			deadline = Math.min(deadline, Math.max(lastRead, lastPing) + ping);
+		}
+		return deadline;
+	}
+
+	@Override
+	protected void expire(long now) {
+		if (client.isClosed())
+			return;
+
+		long lastRead = client.getLastRead();
+		long idle = now - lastRead;
+		if (ChatServer.idleTimeout > 0 && idle >= ChatServer.idleTimeout * 1000000) {
+			Log.info("Client %s: idle for %s ms, closing", client.getId(), idle / 1000000);
+			Metrics.connectionsIdle.increment();
+			ChatServer.close(client);
+			return;
+		}
+
+		long ping = ChatServer.pingInterval * 1000000;
+		if (ping > 0 && idle >= ping && now - lastPing >= ping) {
+			client.sendPING();
+			Metrics.pingsSent.increment();
+			lastPing = now;
+		}
+		// A shared wheel fires its timeouts outside the monitor guarding it
+		synchronized (wheel) {
+			if (!client.isClosed())
+				wheel.schedule(this, next(lastRead));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package rm.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of a value, in power of two buckets. Recording is lock-free
+ * and allocates nothing; percentiles are only known to within a factor of
+ * two, which is enough to tell where the time goes.
+ */
+public class Histogram {
+
+	// Bucket b counts values below 2^b and at least 2^(b-1), bucket 0 counts 0
+	private final LongAdder[] buckets;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	public Histogram() {
+		this.buckets = new LongAdder[65];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Count a value. Negative values count as 0.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+		count.increment();
+		sum.add(value);
+
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Value below which the given fraction of the recorded values fall,
+	 * rounded up to the top of its bucket.
+	 *
+	 * @param fraction - between 0 and 1, 0.99 for p99
+	 * @return the value, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double fraction) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				long top = i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+				return Math.min(top, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1f p50=%d p99=%d p999=%d max=%d",
+			getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getPercentile(0.999), getMax());
+	}
+}
@@ -0,0 +1,238 @@
+package rm.chat.server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log. Logging never blocks and never touches the console on
+ * the calling thread: an entry is put in a bounded lock-free ring and a
+ * background thread formats it and writes it out in batches. When the ring
+ * is full the entry is dropped and counted, and the writer reports how many
+ * were lost.
+ *
+ * Entries keep the format and its arguments; the text is only built on the
+ * writer thread. Entries below the level set by rm.chat.logLevel (INFO by
+ * default, so per-message DEBUG logging is off) cost a comparison. Output
+ * goes to the file named by rm.chat.logFile, or to standard output.
+ */
+public class Log {
+
+	public static enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	private static final Level level = Level.valueOf(System.getProperty("rm.chat.logLevel", "INFO"));
+	private static final String file = System.getProperty("rm.chat.logFile");
+
+	// Most entries waiting to be written, a power of two
+	private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("rm.chat.logBuffer", 8192)));
+
+	// Most entries formatted into one write
+	private static final int BATCH = 1024;
+
+	/**
+	 * A slot of the ring. Its sequence tells whose turn it is: equal to the
+	 * next producer position when free, one more than that once written.
+	 */
+	private static final class Entry {
+		volatile long sequence;
+		long time;
+		Level level;
+		String format;
+		Object a;
+		Object b;
+		Object c;
+	}
+
+	private static final Entry[] ring = new Entry[CAPACITY];
+	private static final AtomicLong tail = new AtomicLong();
+	private static final LongAdder dropped = new LongAdder();
+
+	// Only touched while holding the Log class lock
+	private static long head;
+	private static long reportedDropped;
+	private static final StringBuilder batch = new StringBuilder();
+	private static final Writer out;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			ring[i] = new Entry();
+			ring[i].sequence = i;
+		}
+
+		Writer writer;
+		try {
+			writer = file == null
+				? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+				: new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			System.err.println("Can't open " + file + ", logging to standard output: " + e);
+			writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+		}
+		out = writer;
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					if (drain() == 0)
+						LockSupport.parkNanos(1000000);
+				}
+			}
+		}, "chat-log-writer");
+		thread.setDaemon(true);
+		thread.start();
+
+		// Don't lose what is still in the ring on exit
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (drain() > 0)
+					;
+			}
+		}, "chat-log-flush"));
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.ordinal() >= Log.level.ordinal();
+	}
+
+	public static void debug(String format, Object a) {
+		log(Level.DEBUG, format, a, null, null);
+	}
+
+	public static void debug(String format, Object a, Object b) {
+		log(Level.DEBUG, format, a, b, null);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, "%s", message, null, null);
+	}
+
+	public static void info(String format, Object a) {
+		log(Level.INFO, format, a, null, null);
+	}
+
+	public static void info(String format, Object a, Object b) {
+		log(Level.INFO, format, a, b, null);
+	}
+
+	public static void warn(String format, Object a) {
+		log(Level.WARN, format, a, null, null);
+	}
+
+	public static void warn(String format, Object a, Object b) {
+		log(Level.WARN, format, a, b, null);
+	}
+
+	public static void error(String format, Object a) {
+		log(Level.ERROR, format, a, null, null);
+	}
+
+	public static void error(String format, Object a, Object b) {
+		log(Level.ERROR, format, a, b, null);
+	}
+
+	/**
+	 * Queue an entry for the writer. Formatted later with
+	 * {@link String#format(String, Object...)}.
+	 *
+	 * @param level of the entry
+	 * @param format - format of the text
+	 * @param a - first argument, or null
+	 * @param b - second argument, or null
+	 * @param c - third argument, or null
+	 */
+	public static void log(Level level, String format, Object a, Object b, Object c) {
+		if (!isEnabled(level))
+			return;
+
+		long position;
+		Entry entry;
+		while (true) {
+			position = tail.get();
+			entry = ring[(int) (position & (CAPACITY - 1))];
+			long sequence = entry.sequence;
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				// Full, the writer hasn't got to this slot yet
+				dropped.increment();
+				return;
+			}
+			// Otherwise another thread took the slot first, try the next
+		}
+
+		entry.time = System.currentTimeMillis();
+		entry.level = level;
+		entry.format = format;
+		entry.a = a;
+		entry.b = b;
+		entry.c = c;
+		entry.sequence = position + 1;
+	}
+
+	/**
+	 * Entries lost because the ring was full.
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Write a batch of entries.
+	 *
+	 * @return the number of entries written
+	 */
+	private static synchronized int drain() {
+		int n = 0;
+		while (n < BATCH) {
+			Entry entry = ring[(int) (head & (CAPACITY - 1))];
+			if (entry.sequence != head + 1)
+				break;
+
+			batch.append(Instant.ofEpochMilli(entry.time)).append(' ')
+				.append(entry.level).append(' ');
+			try {
+				batch.append(String.format(entry.format, entry.a, entry.b, entry.c));
+			} catch (RuntimeException e) {
+				batch.append(entry.format).append(" (").append(e).append(')');
+			}
+			batch.append('\n');
+
+			entry.format = null;
+			entry.a = null;
+			entry.b = null;
+			entry.c = null;
+			entry.sequence = head + CAPACITY;
+			head++;
+			n++;
+		}
+
+		long lost = dropped.sum();
+		if (lost != reportedDropped) {
+			batch.append(Instant.now()).append(" WARN ")
+				.append(lost - reportedDropped).append(" log entries dropped\n");
+			reportedDropped = lost;
+		}
+
+		if (batch.length() > 0) {
+			try {
+				out.write(batch.toString());
+				out.flush();
+			} catch (IOException e) {
+				// Nowhere left to report it
+			}
+			batch.setLength(0);
+		}
+		return n;
+	}
+}
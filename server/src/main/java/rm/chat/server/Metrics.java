@@ -0,0 +1,193 @@
+package rm.chat.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * Everything the server counts about itself. Counters and histograms are
+ * created once, when the class loads, and recorded into lock-free from any
+ * loop. Gauges are read from the parts of the server that already keep
+ * the value.
+ *
+ * The metrics can be read through JMX, as the attributes of
+ * rm.chat:type=Metrics, or by a user with the /stats command.
+ */
+public class Metrics {
+
+	// Every metric by name, sorted for display
+	private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+	private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+	private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+	public static final Counter connectionsOpened = counter("connections.opened");
+	public static final Counter connectionsClosed = counter("connections.closed");
+	// Closed for staying silent too long, and PINGs sent to silent clients
+	public static final Counter connectionsIdle = counter("connections.idle");
+	public static final Counter pingsSent = counter("pings.sent");
+
+	public static final Counter messagesIn = counter("messages.in");
+	public static final Counter messagesOut = counter("messages.out");
+	public static final Counter bytesIn = counter("bytes.in");
+	public static final Counter bytesOut = counter("bytes.out");
+
+	public static final Counter resultsOk = counter("results.ok");
+	public static final Counter resultsError = counter("results.error");
+	// Commands count themselves, see CommandTable
+	public static final Counter commandsUnknown = counter("commands.unknown");
+
+	// Frames queued for and read from the other nodes of a cluster
+	public static final Counter clusterFramesOut = counter("cluster.frames.out");
+	public static final Counter clusterFramesIn = counter("cluster.frames.in");
+
+	// Users a broadcast was queued for
+	public static final Histogram fanOut = histogram("broadcast.fanout");
+
+	// Bytes waiting for a client each time it is flushed
+	public static final Histogram outboundBytes = histogram("outbound.bytes");
+
+	// Work done in one iteration of a worker loop, after select returns
+	public static final Histogram loopNanos = histogram("loop.nanos");
+
+	public static Counter counter(String name) {
+		Counter counter = new Counter();
+		counters.put(name, counter);
+		return counter;
+	}
+
+	public static Histogram histogram(String name) {
+		Histogram histogram = new Histogram();
+		histograms.put(name, histogram);
+		return histogram;
+	}
+
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Every metric as a line of text, sorted by name.
+	 */
+	public static List<String> lines() {
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet())
+			lines.add(entry.getKey() + " " + entry.getValue().get());
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+			lines.add(entry.getKey() + " " + entry.getValue().get());
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+			lines.add(entry.getKey() + " " + entry.getValue());
+		return lines;
+	}
+
+	/**
+	 * Publish the metrics on the platform MBean server.
+	 */
+	public static void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("rm.chat:type=Metrics"));
+		} catch (JMException e) {
+			Log.error("Can't register metrics MBean: %s", e);
+		}
+	}
+
+	/**
+	 * The metrics as read-only JMX attributes. A histogram shows up as one
+	 * attribute per statistic, such as loop.nanos.p99.
+	 */
+	private static class MBean implements DynamicMBean {
+
+		private static final String[] STATS = { "count", "mean", "p50", "p99", "p999", "max" };
+
+		private static Object stat(Histogram histogram, String stat) {
+			switch (stat) {
+				case "count":
+					return histogram.getCount();
+				case "mean":
+					return histogram.getMean();
+				case "p50":
+					return histogram.getPercentile(0.5);
+				case "p99":
+					return histogram.getPercentile(0.99);
+				case "p999":
+					return histogram.getPercentile(0.999);
+				case "max":
+					return histogram.getMax();
+				default:
+					return null;
+			}
+		}
+
+		@Override
+		public Object getAttribute(String name) throws AttributeNotFoundException {
+			Counter counter = counters.get(name);
+			if (counter != null)
+				return counter.get();
+			Gauge gauge = gauges.get(name);
+			if (gauge != null)
+				return gauge.get();
+
+			int dot = name.lastIndexOf('.');
+			Histogram histogram = dot < 0 ? null : histograms.get(name.substring(0, dot));
+			Object value = histogram == null ? null : stat(histogram, name.substring(dot + 1));
+			if (value == null)
+				throw new AttributeNotFoundException(name);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] names) {
+			AttributeList list = new AttributeList();
+			for (String name : names) {
+				try {
+					list.add(new Attribute(name, getAttribute(name)));
+				} catch (AttributeNotFoundException e) {
+					// Left out, as JMX expects
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String action, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(action);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (String name : counters.keySet())
+				attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+			for (String name : gauges.keySet())
+				attributes.add(new MBeanAttributeInfo(name, "long", "Gauge", true, false, false));
+			for (String name : histograms.keySet()) {
+				for (String stat : STATS) {
+					String type = stat.equals("mean") ? "double" : "long";
+					attributes.add(new MBeanAttributeInfo(name + "." + stat, type, "Histogram " + stat, true, false, false));
+				}
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+				attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package rm.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rm.chat.shared.Message.MessageType;
+
+/**
+ * The frames waiting to be written to one client, bounded by a byte budget.
+ * Any loop may offer frames; only the loop that owns the client polls them.
+ * When a frame doesn't fit, the queue's {@link OverflowPolicy} decides what
+ * happens, and every drop or disconnect is counted.
+ * 
+ * The queue holds a reference to every frame in it. A polled frame's
+ * reference passes to the caller.
+ */
+public class OutboundQueue {
+
+	// Totals over every client
+	private static final AtomicLong totalDropped = new AtomicLong();
+	private static final AtomicLong totalDisconnects = new AtomicLong();
+
+	private final ArrayDeque<Frame> frames;
+	private final int budget;
+	private final OverflowPolicy policy;
+
+	private int bytes;
+	private long dropped;
+	private long droppedBytes;
+	private boolean overflowed;
+	private boolean closed;
+
+	/**
+	 * @param budget - most bytes that may be waiting
+	 * @param policy - applied when a frame doesn't fit
+	 */
+	public OutboundQueue(int budget, OverflowPolicy policy) {
+		this.frames = new ArrayDeque<>();
+		this.budget = budget;
+		this.policy = policy;
+	}
+
+	/**
+	 * Test if a frame is a chat line, said in a room or in private, which
+	 * is what policies may drop.
+	 */
+	public static boolean isChat(Frame frame) {
+		MessageType type = frame.getType();
+		return type == MessageType.MESSAGE || type == MessageType.PRIV;
+	}
+
+	/**
+	 * Queue a frame, applying the overflow policy if it doesn't fit.
+	 *
+	 * @param frame to queue
+	 * @return False if the client went over budget and must be
+	 * disconnected. The queue is cleared and only accepts
+	 * {@link #force(Frame)} from then on.
+	 */
+	public synchronized boolean offer(Frame frame) {
+		if (closed)
+			return true;
+		if (overflowed)
+			return false;
+
+		if (bytes + frame.length() > budget) {
+			switch (policy.onOverflow(this, frame)) {
+			case QUEUE:
+				break;
+			case DROP:
+				countDrop(frame);
+				return true;
+			case DISCONNECT:
+				Frame queued;
+				while ((queued = poll()) != null) {
+					countDrop(queued);
+					queued.release();
+				}
+				overflowed = true;
+				totalDisconnects.incrementAndGet();
+				return false;
+			}
+		}
+		frames.add(frame.retain());
+		bytes += frame.length();
+		return true;
+	}
+
+	/**
+	 * Queue a frame regardless of the budget.
+	 */
+	public synchronized void force(Frame frame) {
+		if (closed)
+			return;
+		frames.add(frame.retain());
+		bytes += frame.length();
+	}
+
+	/**
+	 * Release every queued frame. The queue ignores frames offered
+	 * afterwards.
+	 */
+	public synchronized void clear() {
+		closed = true;
+		Frame frame;
+		while ((frame = poll()) != null)
+			frame.release();
+	}
+
+	/**
+	 * Take the next frame to write. The caller must release it once
+	 * it has been written.
+	 *
+	 * @return the frame, or null if the queue is empty
+	 */
+	public synchronized Frame poll() {
+		Frame frame = frames.poll();
+		if (frame != null)
+			bytes -= frame.length();
+		return frame;
+	}
+
+	/**
+	 * Drop queued chat lines, oldest first, until there is room for the
+	 * given number of bytes. Meant for policies.
+	 *
+	 * @param needed - bytes to make room for
+	 * @return True if there is room
+	 */
+	public synchronized boolean dropOldestChat(int needed) {
+		Iterator<Frame> it = frames.iterator();
+		while (bytes + needed > budget && it.hasNext()) {
+			Frame frame = it.next();
+			if (isChat(frame)) {
+				it.remove();
+				bytes -= frame.length();
+				countDrop(frame);
+				frame.release();
+			}
+		}
+		return bytes + needed <= budget;
+	}
+
+	private void countDrop(Frame frame) {
+		dropped++;
+		droppedBytes += frame.length();
+		totalDropped.incrementAndGet();
+	}
+
+	/**
+	 * Bytes waiting to be written.
+	 */
+	public synchronized int getBytes() {
+		return this.bytes;
+	}
+
+	public int getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * Frames dropped by the overflow policy.
+	 */
+	public synchronized long getDropped() {
+		return this.dropped;
+	}
+
+	public synchronized long getDroppedBytes() {
+		return this.droppedBytes;
+	}
+
+	/**
+	 * Test if the client was disconnected for going over budget.
+	 */
+	public synchronized boolean isOverflowed() {
+		return this.overflowed;
+	}
+
+	/**
+	 * Frames dropped over every client.
+	 */
+	public static long getTotalDropped() {
+		return totalDropped.get();
+	}
+
+	/**
+	 * Clients disconnected for going over budget.
+	 */
+	public static long getTotalDisconnects() {
+		return totalDisconnects.get();
+	}
+}
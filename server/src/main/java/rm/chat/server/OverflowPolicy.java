@@ -0,0 +1,40 @@
+package rm.chat.server;
+
+/**
+ * Decides what happens when a frame would put a client's outbound queue
+ * over its byte budget.
+ *
+ * @see StandardOverflowPolicy
+ */
+public interface OverflowPolicy {
+
+	/**
+	 * What to do with the frame that didn't fit.
+	 */
+	public static enum Action {
+		/**
+		 * Queue the frame.
+		 */
+		QUEUE,
+
+		/**
+		 * Drop the frame.
+		 */
+		DROP,
+
+		/**
+		 * Drop everything queued and disconnect the client.
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * Called with the queue locked. The policy may make room with
+	 * {@link OutboundQueue#dropOldestChat(int)} before answering.
+	 *
+	 * @param queue that is over budget
+	 * @param frame that didn't fit
+	 * @return what to do with the frame
+	 */
+	Action onOverflow(OutboundQueue queue, Frame frame);
+}
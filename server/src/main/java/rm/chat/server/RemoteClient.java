@@ -0,0 +1,517 @@
+package rm.chat.server;
+
+import rm.chat.shared.BinaryCodec;
+import rm.chat.shared.LineDecoder;
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+import rm.chat.shared.Protocol;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.SelectionKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A remote instance of a client. An instance of this class records a player's
+ * ID, state and which room the client is in, if any.
+ * 
+ * Messages sent to the client are queued and written by the transport that
+ * owns the connection. With the selector engine, whatever the socket doesn't
+ * take right away stays queued and the loop waits for OP_WRITE before trying
+ * again. The queue is bounded, see {@link OutboundQueue}.
+ */
+public class RemoteClient {
+
+    /**
+     * States a Client can be in.
+     */
+    public static enum State {
+        /**
+         * User is registered but not inside a room.
+         */
+        INIT,
+
+        /**
+         * User is registered but not inside a room.
+         */
+        OUTSIDE,
+
+        /**
+         * User is currently inside a room.
+         */
+        INSIDE
+    }
+
+    private static final AtomicInteger ID = new AtomicInteger();
+
+    // Written by the owning loop, read by any loop broadcasting to this client
+    private volatile State state;
+    private volatile String room;
+    private volatile String nick;
+    private int id;
+    private Transport transport;
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    // Protocol picked by the client's first byte
+    private volatile Protocol protocol;
+    private boolean negotiated;
+
+    // Reassembles the lines this client sends
+    private final LineDecoder lineDecoder;
+
+    // Decodes the frames this client sends, if it speaks binary
+    private BinaryCodec binaryCodec;
+
+    // Frames waiting to be written
+    private final OutboundQueue outbound;
+
+    // Most frames handed to a single gathering write
+    private static final int MAX_GATHER = 32;
+
+    // Frames being written, only touched by the owning transport.
+    // The ones left to write are between writingStart and writingEnd.
+    private final ByteBuffer[] writing;
+    private final Frame[] writingFrames;
+    private int writingStart;
+    private int writingEnd;
+
+    // Set while a flush is pending on the owning loop
+    private final AtomicBoolean flushScheduled;
+
+    // Close the connection once the outbound queue drains
+    private volatile boolean closing;
+
+    // Set once the connection has been closed
+    private final AtomicBoolean closed;
+
+    // System.nanoTime() of the last read, and the timeout watching it
+    private volatile long lastRead;
+    private final Heartbeat heartbeat;
+
+    // Set while a command waits for its result, such as a nick claim asked
+    // of another node. Input read meanwhile is held, and processed once the
+    // command is done. Only touched by the transport reading the client.
+    private boolean suspended;
+    private ByteBuffer held;
+
+    /**
+     * Create an instance of a RemoteClient and give it a name Stat initialized to
+     * INIT.
+     * 
+     * @see State#INIT
+     * @param transport that owns the client's connection
+     * @param channel of the client's connection
+     * @param key of the channel, null unless it is registered with a selector
+     */
+    public RemoteClient(Transport transport, SocketChannel channel, SelectionKey key) {
+        this.id     = getNewId();
+        this.state  = State.INIT;
+        this.nick   = "";
+        this.room   = null;
+        this.transport = transport;
+        this.channel = channel;
+        this.key    = key;
+        this.protocol = Protocol.TEXT;
+        this.negotiated = false;
+        this.lineDecoder = new LineDecoder(ChatServer.maxLineLength);
+        this.outbound = new OutboundQueue(ChatServer.sendBufferBytes, ChatServer.overflowPolicy);
+        this.writing = new ByteBuffer[MAX_GATHER];
+        this.writingFrames = new Frame[MAX_GATHER];
+        this.flushScheduled = new AtomicBoolean();
+        this.closing = false;
+        this.closed = new AtomicBoolean();
+        this.lastRead = System.nanoTime();
+        this.heartbeat = new Heartbeat(this);
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    public String getRoom() {
+        return this.room;
+    }
+
+    void setRoom(String room) {
+        this.room = room;
+    }
+
+    public String getNick() {
+        return this.nick;
+    }
+
+    void setNick(String nick) {
+        this.nick = nick;
+        if (this.state == State.INIT)
+            this.state = State.OUTSIDE;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * @return the key of the channel, or null if it isn't
+     * registered with a selector
+     */
+    public SelectionKey getKey() {
+        return this.key;
+    }
+
+    /**
+     * Mark the connection as closed.
+     * 
+     * @return False if it was already closed
+     */
+    boolean markClosed() {
+        return closed.compareAndSet(false, true);
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Note that the client sent something.
+     */
+    void markRead() {
+        this.lastRead = System.nanoTime();
+    }
+
+    /**
+     * @return System.nanoTime() when the client last sent something
+     */
+    public long getLastRead() {
+        return this.lastRead;
+    }
+
+    Heartbeat getHeartbeat() {
+        return this.heartbeat;
+    }
+
+    public LineDecoder getLineDecoder() {
+        return this.lineDecoder;
+    }
+
+    public Protocol getProtocol() {
+        return this.protocol;
+    }
+
+    /**
+     * Test if the client's protocol has been picked yet.
+     */
+    public boolean isNegotiated() {
+        return this.negotiated;
+    }
+
+    void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+        this.negotiated = true;
+    }
+
+    public BinaryCodec getBinaryCodec() {
+        if (binaryCodec == null)
+            binaryCodec = new BinaryCodec(ChatServer.maxLineLength);
+        return this.binaryCodec;
+    }
+
+    public OutboundQueue getOutbound() {
+        return this.outbound;
+    }
+
+    /**
+     * Increment the global ID and return it
+     * 
+     * @return: Next ID
+     */
+    private int getNewId() {
+        return ID.incrementAndGet();
+    }
+    
+    /**
+     * Test if the user can chat, which is when
+     * the user is inside a room
+     * @see @State#INIT
+     * @return True if the client can chat
+     */
+    public boolean canChat() {
+    	return this.getState() == State.INSIDE;
+    }
+
+    /**
+     * Report the result of a user's command.
+     * 
+     * If the result is TRUE then send the client an
+     * OK message.
+     * 
+     * If the result is FALSE send the client an
+     * ERROR message.
+     * 
+     * @param result - True or False
+     * @throws IOException
+     */
+    public void reportResult(boolean result) throws IOException{
+        if (result == true) {
+            Metrics.resultsOk.increment();
+            this.sendOK();
+        } else {
+            Metrics.resultsError.increment();
+            this.sendERROR();
+        }
+    }
+
+    /**
+     * Send an OK Message to the client
+     * @throws IOException
+     */
+    public boolean sendOK() throws IOException {
+        return this.sendFrame(Frame.status(MessageType.OK, protocol));
+    }
+
+    /**
+     * Send an ERROR message to the client
+     * @throws IOException
+     */
+    public boolean sendERROR() throws IOException {
+        return this.sendFrame(Frame.status(MessageType.ERROR, protocol));
+    }
+
+    /**
+     * Check the client is still there, see {@link Heartbeat}
+     */
+    public boolean sendPING() {
+        return this.sendFrame(Frame.status(MessageType.PING, protocol));
+    }
+
+    /**
+     * Send a BYE message to the client
+     * @throws IOException
+     */
+    public boolean sendBYE() throws IOException {
+        return this.sendFrame(Frame.status(MessageType.BYE, protocol));
+    }
+
+    /**
+     * Test if the client is waiting for its last messages to be
+     * written before being disconnected.
+     */
+    public boolean isClosing() {
+        return this.closing;
+    }
+
+    /**
+     * Close the connection once everything queued so far has been
+     * written. Anything sent after this is dropped.
+     */
+    public void closeWhenFlushed() {
+        this.closing = true;
+        this.transport.scheduleFlush(this);
+    }
+
+    /**
+     * Send a message to the client. The message is queued and written
+     * by the client's loop, this never blocks.
+     * 
+     * @param message - to send
+     * @return True if the message was queued
+     * @throws IOException
+     */
+    public boolean sendMessage(Message message) throws IOException {
+        Frame frame = Frame.encode(message, protocol);
+        if (frame == null) {
+            Log.warn("Unhandled message type %s for client %s", message.getType(), id);
+            return false;
+        }
+        boolean result = sendFrame(frame);
+        frame.release();
+        return result;
+    }
+
+    /**
+     * Send an already encoded frame to the client. The same frame can be
+     * sent to any number of clients. The client takes its own reference
+     * to the frame.
+     * 
+     * @param frame - to send
+     * @return True if the frame was queued
+     */
+    public boolean sendFrame(Frame frame) {
+        if (!closed.get() && !closing) {
+            enqueue(frame);
+        }
+        return true;
+    }
+
+    /**
+     * Queue a frame and make sure the owning loop will flush it. If the
+     * client is too far behind it is sent BYE and disconnected.
+     * 
+     * @param frame to write
+     */
+    private void enqueue(Frame frame) {
+        if (!outbound.offer(frame)) {
+            if (closing)
+                return;
+            Log.warn("Client %s: over its send buffer, disconnecting", id);
+            closing = true;
+            outbound.force(Frame.status(MessageType.BYE, protocol));
+        }
+        transport.scheduleFlush(this);
+    }
+
+    /**
+     * Mark the client as waiting for a flush.
+     * 
+     * @return False if a flush was already pending
+     */
+    boolean markFlushScheduled() {
+        return flushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Clear the pending flush mark.
+     * 
+     * @return True if a flush was pending
+     */
+    boolean clearFlushScheduled() {
+        return flushScheduled.getAndSet(false);
+    }
+
+    public boolean isSuspended() {
+        return this.suspended;
+    }
+
+    /**
+     * Stop processing the client's input until {@link #resume()}. On a
+     * selector the loop stops reading the socket too.
+     */
+    void suspend() {
+        this.suspended = true;
+        if (key != null && key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Keep input that arrived while suspended, for when the client resumes.
+     * 
+     * @param input - read up to what was processed
+     */
+    void hold(ByteBuffer input) {
+        if (!input.hasRemaining())
+            return;
+        ByteBuffer copy = ByteBuffer.allocate(input.remaining());
+        copy.put(input).flip();
+        this.held = copy;
+    }
+
+    /**
+     * Start processing the client's input again.
+     * 
+     * @return the input held while suspended, or null
+     */
+    ByteBuffer resume() {
+        this.suspended = false;
+        if (key != null && key.isValid())
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        ByteBuffer input = this.held;
+        this.held = null;
+        return input;
+    }
+
+    /**
+     * Write as much of the outbound queue as the socket will take. Must be
+     * called from the owning transport's writing thread. On a selector,
+     * OP_WRITE interest is kept only while there is data left over.
+     * 
+     * Everything queued since the last flush goes out in as few gathering
+     * writes as possible, so a command result and the broadcasts it caused
+     * cost a single system call.
+     * 
+     * @return True if the queue was drained
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        SocketChannel sc = this.channel;
+        Metrics.outboundBytes.record(outbound.getBytes());
+
+        while (true) {
+            // Move what's left of the last batch to the front and top it up
+            if (writingStart > 0) {
+                int left = writingEnd - writingStart;
+                System.arraycopy(writing, writingStart, writing, 0, left);
+                System.arraycopy(writingFrames, writingStart, writingFrames, 0, left);
+                Arrays.fill(writing, left, writingEnd, null);
+                Arrays.fill(writingFrames, left, writingEnd, null);
+                writingStart = 0;
+                writingEnd = left;
+            }
+            while (writingEnd < MAX_GATHER) {
+                Frame next = outbound.poll();
+                if (next == null)
+                    break;
+                writingFrames[writingEnd] = next;
+                writing[writingEnd++] = next.duplicate();
+            }
+            if (writingEnd == 0)
+                break;
+
+            Metrics.bytesOut.add(sc.write(writing, 0, writingEnd));
+            while (writingStart < writingEnd && !writing[writingStart].hasRemaining()) {
+                // Written, the buffer can go back to the pool
+                Metrics.messagesOut.increment();
+                writingFrames[writingStart].release();
+                writingStart++;
+            }
+
+            if (writingStart < writingEnd && key != null) {
+                // Socket is full, wait until it's writable again
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+
+        if (key != null && (key.interestOps() & SelectionKey.OP_WRITE) != 0)
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    /**
+     * Release every frame still waiting to be written. Called by the
+     * owning transport's writing thread once the connection is closed.
+     */
+    void releaseFrames() {
+        outbound.clear();
+        for (int i = writingStart; i < writingEnd; i++)
+            writingFrames[i].release();
+        Arrays.fill(writing, null);
+        Arrays.fill(writingFrames, null);
+        writingStart = 0;
+        writingEnd = 0;
+    }
+
+    public void joinRoom(String room) {
+        this.room = room;
+        this.state = State.INSIDE;
+    }
+
+    public void leaveRoom() {
+        this.room = null;
+        this.state = State.OUTSIDE;
+    }
+
+}
\ No newline at end of file
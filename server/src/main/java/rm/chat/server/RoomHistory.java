@@ -0,0 +1,163 @@
+package rm.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import rm.chat.shared.Message;
+import rm.chat.shared.Protocol;
+
+/**
+ * The last chat messages said in a room, kept as the frames they were
+ * broadcast with so they can be replayed to users joining later.
+ *
+ * Each room keeps at most a fixed number of messages, and all rooms
+ * together keep at most a fixed number of bytes. A frame counts as the
+ * whole pooled buffer it holds on to, not just its length. When that budget is
+ * used up a room makes room by forgetting its own oldest messages, and
+ * if it has none it doesn't keep the new one.
+ *
+ * Not thread safe, a history is only used the way its room is.
+ */
+public class RoomHistory {
+
+	// Bytes kept by every room together
+	private static final AtomicLong totalBytes = new AtomicLong();
+
+	private final long maxTotalBytes;
+
+	// Ring of entries, oldest at head. A message keeps the frame of each
+	// protocol it has been encoded in so far.
+	private final Message[] messages;
+	private final Frame[] text;
+	private final Frame[] binary;
+	private int head;
+	private int count;
+	private long bytes;
+
+	/**
+	 * @param capacity - most messages kept by the room
+	 * @param maxTotalBytes - most bytes kept by all rooms together
+	 */
+	public RoomHistory(int capacity, long maxTotalBytes) {
+		this.maxTotalBytes = maxTotalBytes;
+		this.messages = new Message[capacity];
+		this.text = new Frame[capacity];
+		this.binary = new Frame[capacity];
+	}
+
+	private static long size(Frame frame) {
+		return frame == null ? 0 : frame.footprint();
+	}
+
+	/**
+	 * Remember a message. The history takes its own reference to the
+	 * frames given.
+	 *
+	 * @param message that was broadcast
+	 * @param textFrame - its text frame, if it was encoded
+	 * @param binaryFrame - its binary frame, if it was encoded
+	 */
+	public void add(Message message, Frame textFrame, Frame binaryFrame) {
+		if (messages.length == 0)
+			return;
+
+		long size = size(textFrame) + size(binaryFrame);
+		if (count == messages.length)
+			removeOldest();
+		while (count > 0 && totalBytes.get() + size > maxTotalBytes)
+			removeOldest();
+		if (totalBytes.get() + size > maxTotalBytes)
+			return;
+
+		int i = (head + count) % messages.length;
+		messages[i] = message;
+		text[i] = textFrame == null ? null : textFrame.retain();
+		binary[i] = binaryFrame == null ? null : binaryFrame.retain();
+		count++;
+		bytes += size;
+		totalBytes.addAndGet(size);
+	}
+
+	private void removeOldest() {
+		long size = size(text[head]) + size(binary[head]);
+		if (text[head] != null)
+			text[head].release();
+		if (binary[head] != null)
+			binary[head].release();
+		messages[head] = null;
+		text[head] = null;
+		binary[head] = null;
+		head = (head + 1) % messages.length;
+		count--;
+		bytes -= size;
+		totalBytes.addAndGet(-size);
+	}
+
+	/**
+	 * Queue the last messages for a client. They go out together on the
+	 * client's next flush.
+	 *
+	 * @param client to replay to
+	 * @param last - how many messages to replay at most
+	 * @return the number of messages replayed
+	 */
+	public int replay(RemoteClient client, int last) {
+		int n = Math.min(last, count);
+		boolean isBinary = client.getProtocol() == Protocol.BINARY;
+		Frame[] frames = isBinary ? binary : text;
+		if (n <= 0)
+			return 0;
+
+		int i = (head + count - n) % messages.length;
+		for (int k = 0; k < n; k++, i = (i + 1) % messages.length) {
+			if (frames[i] != null) {
+				client.sendFrame(frames[i]);
+				continue;
+			}
+
+			// First replay in this protocol, encode it once and keep it if
+			// the budget allows, making room from older messages
+			Frame frame = Frame.encode(messages[i], client.getProtocol());
+			long size = size(frame);
+			while (head != i && totalBytes.get() + size > maxTotalBytes)
+				removeOldest();
+			client.sendFrame(frame);
+			if (totalBytes.get() + size > maxTotalBytes) {
+				frame.release();
+				continue;
+			}
+			frames[i] = frame;
+			bytes += size;
+			totalBytes.addAndGet(size);
+		}
+		return n;
+	}
+
+	/**
+	 * Forget every message.
+	 */
+	public void clear() {
+		while (count > 0)
+			removeOldest();
+	}
+
+	/**
+	 * Number of messages kept.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Bytes kept by this room.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Bytes kept by every room together.
+	 */
+	public static long getTotalBytes() {
+		return totalBytes.get();
+	}
+}
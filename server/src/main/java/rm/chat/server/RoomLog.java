@@ -0,0 +1,368 @@
+package rm.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import rm.chat.shared.Message.MessageType;
+
+/**
+ * A room's messages on disk, in an append-only log of memory-mapped
+ * segment files. Appending copies the encoded frame into the mapped
+ * segment; a background thread forces dirty segments to disk every few
+ * milliseconds, so a broadcast never waits for the disk.
+ *
+ * Each record is a four byte length followed by the text frame. The length
+ * is written after the frame, so a record is only ever seen whole. A
+ * segment starts small and is mapped again at twice the size as it fills,
+ * up to rm.chat.logSegmentBytes, after which the log rolls over to a new
+ * one. The background thread grows the last segment, or creates the next
+ * one, ahead of time, so appending rarely touches the file system. Reading
+ * the log back hands out frames that point straight into the mapped
+ * segments.
+ *
+ * Only the room's broadcasting thread appends; any thread may read. The log
+ * is off unless rm.chat.logDir is set.
+ */
+public class RoomLog {
+
+	// Size a segment is first mapped at
+	private static final int INITIAL_SEGMENT_BYTES = 64 << 10;
+
+	// Open logs by room name
+	private static final ConcurrentMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+
+	private static boolean flusherStarted;
+
+	/**
+	 * One segment file and the offsets of the records in it.
+	 */
+	private static class Segment {
+		final int index;
+
+		// Current mapping of the file, replaced by a larger one as it grows
+		volatile MappedByteBuffer map;
+
+		// A larger mapping made ahead of time, or null
+		volatile MappedByteBuffer grown;
+
+		// Offsets of the records, published by count
+		volatile int[] offsets = new int[64];
+		volatile int count;
+
+		// End of the last record
+		int end;
+
+		volatile boolean dirty;
+
+		Segment(int index, MappedByteBuffer map) {
+			this.index = index;
+			this.map = map;
+		}
+	}
+
+	private final String room;
+	private final File dir;
+	private final int segmentBytes;
+	private final int initialBytes;
+	private final List<Segment> segments;
+
+	// The segment after the last one, made ahead of time, or null
+	private volatile Segment next;
+
+	// Rooms holding the log, guarded by logs
+	private int refs;
+	private volatile boolean closed;
+
+	private RoomLog(String room, File dir, int segmentBytes) {
+		this.room = room;
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.initialBytes = Math.min(INITIAL_SEGMENT_BYTES, segmentBytes);
+		this.segments = new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Get the log of a room, opening it on first use. An existing log picks
+	 * up where it was left before a restart. Every room given the log must
+	 * {@link #close()} it; the log stays open while any of them holds it.
+	 *
+	 * @param room - name of the room
+	 * @return the log
+	 * @throws IOException If the log can't be opened
+	 */
+	public static RoomLog forRoom(String room) throws IOException {
+		synchronized (logs) {
+			RoomLog log = logs.get(room);
+			if (log == null) {
+				// Room names can be anything, keep them out of the path
+				StringBuilder name = new StringBuilder("room-");
+				for (byte b : room.getBytes(StandardCharsets.UTF_8))
+					name.append(String.format("%02x", b));
+
+				File dir = new File(ChatServer.logDir, name.toString());
+				if (!dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("Can't create " + dir);
+
+				log = new RoomLog(room, dir, ChatServer.logSegmentBytes);
+				log.load();
+				if (!flusherStarted) {
+					startFlusher();
+					flusherStarted = true;
+				}
+				logs.put(room, log);
+			}
+			log.refs++;
+			return log;
+		}
+	}
+
+	/**
+	 * Give up a room's hold on the log. Once no room holds it, it is forced
+	 * to disk and forgotten, and opened again from disk by the next room of
+	 * that name. The mappings are let go rather than unmapped, since frames
+	 * read from them may still be queued for clients; they are unmapped once
+	 * nothing points into them anymore.
+	 */
+	public void close() {
+		synchronized (logs) {
+			if (--refs > 0)
+				return;
+			logs.remove(room, this);
+			closed = true;
+		}
+		force();
+		synchronized (this) {
+			segments.clear();
+			next = null;
+		}
+	}
+
+	private File segmentFile(int index) {
+		return new File(dir, String.format("%010d.log", index));
+	}
+
+	/**
+	 * Map the existing segments and find the end of the log.
+	 */
+	private void load() throws IOException {
+		int index = 0;
+		while (segmentFile(index).exists()) {
+			Segment segment = new Segment(index, map(index, segmentFile(index).length()));
+			scan(segment);
+			segments.add(segment);
+			index++;
+		}
+		if (segments.isEmpty())
+			segments.add(new Segment(0, map(0, initialBytes)));
+	}
+
+	/**
+	 * Map the first bytes of a segment file, extending it if it is shorter.
+	 */
+	private MappedByteBuffer map(int index, long size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(index), "rw");
+		try {
+			if (file.length() < size)
+				file.setLength(size);
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// The mapping stays valid once the file is closed
+			file.close();
+		}
+	}
+
+	private static void scan(Segment segment) {
+		ByteBuffer map = segment.map;
+		int pos = 0;
+		while (pos + 4 <= map.capacity()) {
+			int length = map.getInt(pos);
+			if (length <= 0 || pos + 4 + length > map.capacity())
+				break;
+			addOffset(segment, pos);
+			pos += 4 + length;
+		}
+		segment.end = pos;
+	}
+
+	private static void addOffset(Segment segment, int offset) {
+		int[] offsets = segment.offsets;
+		if (segment.count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			segment.offsets = offsets;
+		}
+		offsets[segment.count] = offset;
+		segment.count++;
+	}
+
+	/**
+	 * Append a frame to the log.
+	 *
+	 * @param frame - text frame of a chat message
+	 * @throws IOException If a new segment can't be created
+	 */
+	public void append(Frame frame) throws IOException {
+		int length = frame.length();
+		if (closed || 4 + length > segmentBytes)
+			return;
+
+		Segment segment = segments.get(segments.size() - 1);
+		int needed = segment.end + 4 + length;
+		if (needed > segment.map.capacity()) {
+			if (needed <= segmentBytes) {
+				grow(segment, needed);
+			} else {
+				// Roll over, the full segment is forced by the flusher
+				segment.grown = null;
+				Segment ahead = next;
+				next = null;
+				if (ahead == null || ahead.index != segments.size())
+					ahead = new Segment(segments.size(), map(segments.size(), Math.max(initialBytes, 4 + length)));
+				segment = ahead;
+				if (4 + length > segment.map.capacity())
+					grow(segment, 4 + length);
+				segments.add(segment);
+			}
+		}
+
+		int offset = segment.end;
+		ByteBuffer out = segment.map.duplicate();
+		out.position(offset + 4);
+		out.put(frame.duplicate());
+		segment.map.putInt(offset, length);
+
+		segment.end = offset + 4 + length;
+		segment.dirty = true;
+		addOffset(segment, offset);
+	}
+
+	/**
+	 * Size to map a segment at so it holds the given number of bytes:
+	 * double the current size, up to the largest segment.
+	 */
+	private int grownSize(int capacity, int needed) {
+		long size = Math.max(capacity, initialBytes);
+		while (size < needed || size == capacity)
+			size = size << 1;
+		return (int) Math.min(size, segmentBytes);
+	}
+
+	/**
+	 * Switch a segment to a mapping of at least the given size, the one
+	 * made ahead of time if it is big enough.
+	 */
+	private void grow(Segment segment, int needed) throws IOException {
+		MappedByteBuffer map = segment.grown;
+		segment.grown = null;
+		if (map == null || map.capacity() < needed)
+			map = map(segment.index, grownSize(segment.map.capacity(), needed));
+		segment.map = map;
+	}
+
+	/**
+	 * Get ready for the next appends: once the last segment is half full,
+	 * map it at twice the size, or create the next segment if it is
+	 * already as big as it gets. Run by the flusher, holding the log so
+	 * closing can't empty it meanwhile.
+	 */
+	private synchronized void prepare() throws IOException {
+		if (closed || segments.isEmpty())
+			return;
+		Segment segment = segments.get(segments.size() - 1);
+		int capacity = segment.map.capacity();
+		if (segment.end < capacity / 2)
+			return;
+
+		if (capacity < segmentBytes) {
+			if (segment.grown == null || segment.grown.capacity() <= capacity)
+				segment.grown = map(segment.index, grownSize(capacity, capacity));
+		} else if (next == null || next.index != segments.size()) {
+			next = new Segment(segments.size(), map(segments.size(), initialBytes));
+		}
+	}
+
+	/**
+	 * Get the last frames in the log, oldest first. The frames point into
+	 * the mapped segments and are never released.
+	 *
+	 * @param n - how many frames at most
+	 * @return the frames
+	 */
+	public List<Frame> last(int n) {
+		List<Frame> frames = new ArrayList<>();
+		// A copy, the log may be closed meanwhile
+		Segment[] all = segments.toArray(new Segment[0]);
+		for (int s = all.length - 1; s >= 0 && frames.size() < n; s--) {
+			Segment segment = all[s];
+			int count = segment.count;
+			int[] offsets = segment.offsets;
+			for (int i = count - 1; i >= 0 && frames.size() < n; i--) {
+				int offset = offsets[i];
+				ByteBuffer record = segment.map.duplicate();
+				record.limit(offset + 4 + record.getInt(offset)).position(offset + 4);
+				frames.add(Frame.wrap(MessageType.MESSAGE, record.slice()));
+			}
+		}
+		Collections.reverse(frames);
+		return frames;
+	}
+
+	/**
+	 * Force everything appended so far to disk.
+	 */
+	public void force() {
+		for (Segment segment : segments) {
+			if (segment.dirty) {
+				segment.dirty = false;
+				segment.map.force();
+			}
+		}
+	}
+
+	/**
+	 * Group commit: every few milliseconds, force whatever was appended
+	 * to any log since the last run.
+	 */
+	private static void startFlusher() {
+		ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "chat-log-flusher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (RoomLog log : logs.values()) {
+					try {
+						log.force();
+						log.prepare();
+					} catch (IOException e) {
+						// Appending will try again itself
+						Log.warn("Can't extend log of %s: %s", log.room, e);
+					} catch (RuntimeException e) {
+						// Thrown out of here it would cancel the flusher for good
+						Log.warn("Can't flush log of %s: %s", log.room, e);
+					}
+				}
+			}
+		}, ChatServer.logFlushMillis, ChatServer.logFlushMillis, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,127 @@
+package rm.chat.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread owning a share of the rooms, when rooms are sharded. Every
+ * join, leave and broadcast of its rooms is posted to its mailbox and run
+ * on its thread, one after the other, so a room is only ever touched by
+ * one thread and rooms on different shards run in parallel.
+ *
+ * The mailbox is a lock-free linked queue: posting swaps the tail and
+ * links the old one, and only the shard's thread takes from the head. The
+ * thread parks when the mailbox is empty and the next post wakes it.
+ *
+ * How many tasks are waiting, and how long each one took from being
+ * posted to being done, are kept as the rooms.shard.N.depth gauge and the
+ * rooms.shard.N.latency histogram.
+ */
+public class RoomShard implements Runnable {
+
+	private static final class Node {
+		Runnable task;
+		long posted;
+		volatile Node next;
+	}
+
+	private final int index;
+	private final AtomicReference<Node> tail;
+	private final AtomicInteger depth;
+	private final AtomicBoolean sleeping;
+	private final Histogram latency;
+	private Thread thread;
+
+	// Last node taken, only touched by the shard's thread
+	private Node head;
+
+	public RoomShard(int index) {
+		this.index = index;
+		this.head = new Node();
+		this.tail = new AtomicReference<>(head);
+		this.depth = new AtomicInteger();
+		this.sleeping = new AtomicBoolean();
+		this.latency = Metrics.histogram("rooms.shard." + index + ".latency");
+		Metrics.gauge("rooms.shard." + index + ".depth", new Gauge() {
+			@Override
+			public long get() {
+				return depth.get();
+			}
+		});
+	}
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Tasks posted and not done yet.
+	 */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * Start the shard on a new thread.
+	 */
+	public void start() {
+		this.thread = new Thread(this, "chat-room-shard-" + index);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Run a task on the shard's thread, after the ones already posted.
+	 * Safe to call from any thread, never blocks.
+	 *
+	 * @param task to run
+	 */
+	public void execute(Runnable task) {
+		Node node = new Node();
+		node.task = task;
+		node.posted = System.nanoTime();
+		depth.incrementAndGet();
+
+		Node previous = tail.getAndSet(node);
+		previous.next = node;
+
+		// Linked before looking, so a thread going to sleep sees the task
+		if (sleeping.get() && sleeping.compareAndSet(true, false))
+			LockSupport.unpark(thread);
+	}
+
+	private Node poll() {
+		Node next = head.next;
+		if (next == null)
+			return null;
+		head = next;
+		return next;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Node node = poll();
+			if (node == null) {
+				sleeping.set(true);
+				node = poll();
+				if (node == null) {
+					LockSupport.park(this);
+					continue;
+				}
+				sleeping.set(false);
+			}
+
+			try {
+				node.task.run();
+			} catch (RuntimeException e) {
+				Log.error("%s: task failed: %s", thread.getName(), e);
+			}
+			node.task = null;
+			depth.decrementAndGet();
+			latency.record(System.nanoTime() - node.posted);
+		}
+	}
+}
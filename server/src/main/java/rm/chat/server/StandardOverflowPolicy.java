@@ -0,0 +1,55 @@
+package rm.chat.server;
+
+/**
+ * The overflow policies the server can be configured with.
+ *
+ * Only chat lines, in rooms or private, are ever dropped. Other frames (command results, joins,
+ * leaves, nick changes) push out queued chat lines to make room, and if
+ * that isn't enough the client is disconnected.
+ */
+public enum StandardOverflowPolicy implements OverflowPolicy {
+
+	/**
+	 * Drop the oldest queued chat lines until the new frame fits.
+	 */
+	DROP_OLDEST {
+		@Override
+		public Action onOverflow(OutboundQueue queue, Frame frame) {
+			if (queue.dropOldestChat(frame.length()))
+				return Action.QUEUE;
+			return OutboundQueue.isChat(frame) ? Action.DROP : Action.DISCONNECT;
+		}
+	},
+
+	/**
+	 * Drop new chat lines while the queue is full.
+	 */
+	DROP_NEWEST {
+		@Override
+		public Action onOverflow(OutboundQueue queue, Frame frame) {
+			if (OutboundQueue.isChat(frame))
+				return Action.DROP;
+			return queue.dropOldestChat(frame.length()) ? Action.QUEUE : Action.DISCONNECT;
+		}
+	},
+
+	/**
+	 * Disconnect the client with BYE.
+	 */
+	DISCONNECT {
+		@Override
+		public Action onOverflow(OutboundQueue queue, Frame frame) {
+			return Action.DISCONNECT;
+		}
+	};
+
+	/**
+	 * Look up a policy by name, as in "drop-oldest".
+	 *
+	 * @param name of the policy
+	 * @return the policy
+	 */
+	public static StandardOverflowPolicy forName(String name) {
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+}
@@ -0,0 +1,130 @@
+package rm.chat.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread per connection engine, an alternative to the selector loops.
+ * Every accepted connection gets a reader thread and a writer thread doing
+ * blocking I/O, see {@link BlockingConnection}. The command handlers, rooms
+ * and clients are the same as with the selector engine.
+ * 
+ * The threads are virtual threads when the runtime has them, and plain
+ * daemon threads otherwise. The heartbeats of every connection share one
+ * {@link TimerWheel}, guarded by its monitor and advanced by a timer
+ * thread.
+ */
+public class ThreadEngine {
+
+	private static ThreadFactory threads;
+
+	private static final TimerWheel timers = new TimerWheel(512, ChatServer.timerTick * 1000000);
+
+	/**
+	 * Create the factory for connection threads. Virtual threads are looked
+	 * up reflectively so the server still builds and runs on runtimes that
+	 * don't have them.
+	 */
+	private static ThreadFactory newThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, "chat-conn-", 0L);
+			Method factory = builderClass.getMethod("factory");
+			ThreadFactory virtual = (ThreadFactory) factory.invoke(builder);
+			Log.info("Using virtual threads");
+			return virtual;
+		} catch (Exception e) {
+			Log.info("Virtual threads not available, using platform threads");
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "chat-conn-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	static ThreadFactory getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Start watching a client for silence.
+	 */
+	static void startHeartbeat(RemoteClient client) {
+		synchronized (timers) {
+			client.getHeartbeat().start(timers);
+		}
+	}
+
+	/**
+	 * Stop watching a client, from any thread.
+	 */
+	static void stopHeartbeat(RemoteClient client) {
+		synchronized (timers) {
+			client.getHeartbeat().stop();
+		}
+	}
+
+	/**
+	 * Advance the timer wheel every tick.
+	 */
+	private static void startTimer() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(ChatServer.timerTick);
+					} catch (InterruptedException e) {
+						return;
+					}
+					// Fired outside the lock, closing an idle client
+					// broadcasts and may stop other heartbeats
+					long now = System.nanoTime();
+					TimerWheel.Timeout due;
+					synchronized (timers) {
+						due = timers.takeDue(now);
+					}
+					TimerWheel.fire(due, now);
+				}
+			}
+		}, "chat-timer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Listen on a port and serve every connection on its own threads. Runs
+	 * the accept loop on the calling thread.
+	 * 
+	 * @param port to listen on
+	 * @throws IOException If an IO error occurs
+	 */
+	public static void start(int port) throws IOException {
+		threads = newThreadFactory();
+		if (Heartbeat.isEnabled())
+			startTimer();
+
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(port));
+		Log.info("Listening on port %s with a thread per connection", port);
+
+		while (true) {
+			SocketChannel sc = ssc.accept();
+			Log.debug("Got connection from %s", sc);
+			threads.newThread(new BlockingConnection(sc)).start();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package rm.chat.server;
+
+/**
+ * A hashed timer wheel. Timeouts hash by their deadline tick into a ring of
+ * slots, each a doubly linked list threaded through the timeouts
+ * themselves, so scheduling and cancelling are constant time and allocate
+ * nothing. Advancing the wheel visits one slot per elapsed tick, taking
+ * out the timeouts that are due and skipping the ones due on a later turn,
+ * and only then fires them, so a timeout firing may cancel or schedule any
+ * other.
+ *
+ * Not thread safe: a wheel belongs to one thread, such as an
+ * {@link EventLoop}, or is guarded by its own monitor. A guarded wheel takes
+ * out the due timeouts under the monitor and fires them outside it.
+ */
+public class TimerWheel {
+
+	/**
+	 * Something to run when its deadline passes. A timeout is in at most
+	 * one wheel at a time.
+	 */
+	public static abstract class Timeout {
+		private TimerWheel wheel;
+		private Timeout prev;
+		private Timeout next;
+		private long deadline;
+
+		// Taken out of the wheel as due and not yet fired, chained by nextDue
+		private volatile boolean pending;
+		private Timeout nextDue;
+
+		/**
+		 * Called by the wheel's thread once the deadline has passed. The
+		 * timeout is no longer scheduled and may schedule itself again.
+		 *
+		 * @param now - System.nanoTime() when the wheel was advanced
+		 */
+		protected abstract void expire(long now);
+
+		public boolean isScheduled() {
+			return wheel != null;
+		}
+	}
+
+	private final Timeout[] slots;
+	private final int mask;
+	private final long tickNanos;
+	private final long start;
+
+	// Last tick the wheel was advanced to
+	private long tick;
+	private int size;
+
+	/**
+	 * @param slots - number of slots, rounded up to a power of two
+	 * @param tickNanos - length of a tick, the wheel's resolution
+	 */
+	public TimerWheel(int slots, long tickNanos) {
+		int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.slots = new Timeout[n];
+		this.mask = n - 1;
+		this.tickNanos = tickNanos;
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Number of timeouts scheduled.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Length of a tick in milliseconds, at least 1.
+	 */
+	public long getTickMillis() {
+		return Math.max(1, tickNanos / 1000000);
+	}
+
+	/**
+	 * Schedule a timeout, moving it if it was already scheduled. It fires
+	 * on the first advance at least a tick past the deadline.
+	 *
+	 * @param timeout to schedule
+	 * @param deadline - System.nanoTime() after which it should fire
+	 */
+	public void schedule(Timeout timeout, long deadline) {
+		timeout.pending = false;
+		if (timeout.wheel != null)
+			timeout.wheel.cancel(timeout);
+
+		long due = Math.max(tick + 1, (deadline - start + tickNanos - 1) / tickNanos);
+		Timeout head = slots[(int) (due & mask)];
+		timeout.deadline = due;
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null)
+			head.prev = timeout;
+		slots[(int) (due & mask)] = timeout;
+		timeout.wheel = this;
+		size++;
+	}
+
+	/**
+	 * Unschedule a timeout, also if it was taken out as due but hasn't
+	 * fired yet. Otherwise does nothing if it isn't scheduled here.
+	 */
+	public void cancel(Timeout timeout) {
+		timeout.pending = false;
+		if (timeout.wheel != this)
+			return;
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slots[(int) (timeout.deadline & mask)] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.wheel = null;
+		size--;
+	}
+
+	/**
+	 * Fire every timeout whose deadline has passed.
+	 *
+	 * @param now - System.nanoTime()
+	 */
+	public void advance(long now) {
+		fire(takeDue(now), now);
+	}
+
+	/**
+	 * Take out every timeout whose deadline has passed, without firing
+	 * them.
+	 *
+	 * @param now - System.nanoTime()
+	 * @return the first of the due timeouts, to hand to {@link #fire}
+	 */
+	public Timeout takeDue(long now) {
+		long target = (now - start) / tickNanos;
+		if (target <= tick)
+			return null;
+
+		// Timeouts scheduled while firing go past this advance
+		long from = tick;
+		tick = target;
+
+		Timeout first = null;
+		Timeout last = null;
+		// A long gap still only needs one turn of the wheel
+		long steps = Math.min(target - from, slots.length);
+		for (long i = 1; i <= steps; i++) {
+			Timeout timeout = slots[(int) ((from + i) & mask)];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadline <= target) {
+					cancel(timeout);
+					timeout.pending = true;
+					if (last == null)
+						first = timeout;
+					else
+						last.nextDue = timeout;
+					last = timeout;
+				}
+				timeout = next;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Fire timeouts taken out as due, skipping the ones cancelled or
+	 * scheduled again since.
+	 *
+	 * @param due - the first of them, from {@link #takeDue}
+	 * @param now - System.nanoTime() they were taken out at
+	 */
+	public static void fire(Timeout due, long now) {
+		while (due != null) {
+			Timeout timeout = due;
+			due = timeout.nextDue;
+			timeout.nextDue = null;
+			if (timeout.pending) {
+				timeout.pending = false;
+				timeout.expire(now);
+			}
+		}
+	}
+}
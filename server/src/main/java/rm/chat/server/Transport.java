@@ -0,0 +1,33 @@
+package rm.chat.server;
+
+/**
+ * Moves the bytes of the clients it owns. Each engine has its own:
+ * {@link EventLoop} for the selector engine, {@link BlockingConnection}
+ * for the thread per connection engine.
+ */
+public interface Transport {
+
+	/**
+	 * Make sure a client's queued frames get written. Safe to call from
+	 * any thread, never blocks.
+	 * 
+	 * @param client owned by this transport
+	 */
+	void scheduleFlush(RemoteClient client);
+
+	/**
+	 * Run a task on the thread that reads the clients of this transport,
+	 * such as resuming a suspended client. Safe to call from any thread,
+	 * never blocks.
+	 * 
+	 * @param task to run
+	 */
+	void execute(Runnable task);
+
+	/**
+	 * Called once when a connection owned by this transport is closed.
+	 * 
+	 * @param client whose connection was closed
+	 */
+	void deregister(RemoteClient client);
+}
@@ -0,0 +1,94 @@
+package rm.chat.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import rm.chat.shared.Message.MessageType;
+
+public class OutboundQueueTest {
+
+	// Every frame is this long, the queues fit three
+	private static final int LENGTH = 10;
+
+	private static Frame frame(MessageType type) {
+		return Frame.wrap(type, ByteBuffer.allocate(LENGTH));
+	}
+
+	private static OutboundQueue queue(OverflowPolicy policy) {
+		return new OutboundQueue(3 * LENGTH, policy);
+	}
+
+	@Test
+	public void privateMessagesAreChat() {
+		assertTrue(OutboundQueue.isChat(frame(MessageType.MESSAGE)));
+		assertTrue(OutboundQueue.isChat(frame(MessageType.PRIV)));
+		assertFalse(OutboundQueue.isChat(frame(MessageType.OK)));
+		assertFalse(OutboundQueue.isChat(frame(MessageType.JOINED)));
+	}
+
+	@Test
+	public void dropOldestShedsPrivateMessages() {
+		OutboundQueue queue = queue(StandardOverflowPolicy.DROP_OLDEST);
+		Frame first = frame(MessageType.PRIV);
+		Frame last = frame(MessageType.PRIV);
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(frame(MessageType.PRIV)));
+		assertTrue(queue.offer(frame(MessageType.PRIV)));
+		assertTrue(queue.offer(last));
+
+		assertFalse(queue.isOverflowed());
+		assertEquals(1, queue.getDropped());
+		assertEquals(3 * LENGTH, queue.getBytes());
+		queue.poll();
+		queue.poll();
+		assertSame(last, queue.poll());
+	}
+
+	@Test
+	public void dropNewestShedsPrivateMessages() {
+		OutboundQueue queue = queue(StandardOverflowPolicy.DROP_NEWEST);
+		for (int i = 0; i < 5; i++)
+			assertTrue(queue.offer(frame(MessageType.PRIV)));
+
+		assertFalse(queue.isOverflowed());
+		assertEquals(2, queue.getDropped());
+	}
+
+	@Test
+	public void statusPushesOutPrivateMessages() {
+		OutboundQueue queue = queue(StandardOverflowPolicy.DROP_NEWEST);
+		for (int i = 0; i < 3; i++)
+			assertTrue(queue.offer(frame(MessageType.PRIV)));
+
+		assertTrue(queue.offer(frame(MessageType.OK)));
+		assertFalse(queue.isOverflowed());
+		assertEquals(1, queue.getDropped());
+	}
+
+	@Test
+	public void disconnectsWhenNothingCanBeShed() {
+		OutboundQueue queue = queue(StandardOverflowPolicy.DROP_OLDEST);
+		for (int i = 0; i < 3; i++)
+			assertTrue(queue.offer(frame(MessageType.JOINED)));
+
+		assertFalse(queue.offer(frame(MessageType.OK)));
+		assertTrue(queue.isOverflowed());
+		assertEquals(0, queue.getBytes());
+	}
+
+	@Test
+	public void disconnectPolicyShedsNothing() {
+		OutboundQueue queue = queue(StandardOverflowPolicy.DISCONNECT);
+		for (int i = 0; i < 3; i++)
+			assertTrue(queue.offer(frame(MessageType.PRIV)));
+
+		assertFalse(queue.offer(frame(MessageType.PRIV)));
+		assertTrue(queue.isOverflowed());
+	}
+}
@@ -0,0 +1,103 @@
+package rm.chat.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import rm.chat.shared.Message;
+import rm.chat.shared.Message.MessageType;
+import rm.chat.shared.Protocol;
+
+public class RoomHistoryTest {
+
+	// Queues frames without writing them anywhere
+	private static final Transport IDLE = new Transport() {
+		@Override
+		public void scheduleFlush(RemoteClient client) {
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			task.run();
+		}
+
+		@Override
+		public void deregister(RemoteClient client) {
+		}
+	};
+
+	private static Message message(int i) {
+		return new Message(MessageType.MESSAGE, "nick", "message " + i);
+	}
+
+	// Add a message that was broadcast only in text
+	private static void add(RoomHistory history, Message message) {
+		Frame frame = Frame.encode(message, Protocol.TEXT);
+		history.add(message, frame, null);
+		frame.release();
+	}
+
+	private static int drain(RemoteClient client) {
+		int n = 0;
+		Frame frame;
+		while ((frame = client.getOutbound().poll()) != null) {
+			frame.release();
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void crossProtocolReplayStaysInBudget() {
+		Frame probe = Frame.encode(message(0), Protocol.TEXT);
+		long footprint = probe.footprint();
+		probe.release();
+
+		long before = RoomHistory.getTotalBytes();
+		long max = before + 3 * footprint + footprint / 2;
+		RoomHistory history = new RoomHistory(10, max);
+		for (int i = 0; i < 3; i++)
+			add(history, message(i));
+		assertEquals(3, history.size());
+
+		RemoteClient client = new RemoteClient(IDLE, null, null);
+		client.setProtocol(Protocol.BINARY);
+		assertEquals(3, history.replay(client, 3));
+
+		assertTrue(RoomHistory.getTotalBytes() <= max);
+		assertEquals(3, drain(client));
+
+		history.clear();
+		assertEquals(before, RoomHistory.getTotalBytes());
+	}
+
+	@Test
+	public void replayedFrameTooBigToKeepIsStillSent() {
+		Frame probe = Frame.encode(message(0), Protocol.TEXT);
+		long footprint = probe.footprint();
+		probe.release();
+
+		long before = RoomHistory.getTotalBytes();
+		long max = before + footprint;
+		RoomHistory history = new RoomHistory(10, max);
+		Message message = message(0);
+		add(history, message);
+
+		RemoteClient client = new RemoteClient(IDLE, null, null);
+		client.setProtocol(Protocol.BINARY);
+		assertEquals(1, history.replay(client, 1));
+
+		assertTrue(RoomHistory.getTotalBytes() <= max);
+		assertEquals(1, history.size());
+		Frame sent = client.getOutbound().poll();
+		assertNotNull(sent);
+		sent.release();
+		assertNull(client.getOutbound().poll());
+
+		history.clear();
+		assertEquals(before, RoomHistory.getTotalBytes());
+	}
+}
@@ -0,0 +1,107 @@
+package rm.chat.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+	private static final long TICK = 1000000;
+
+	// Records when it fires, then runs an action
+	private static class Recording extends TimerWheel.Timeout {
+		final List<Recording> fired;
+		Runnable action;
+
+		Recording(List<Recording> fired) {
+			this.fired = fired;
+		}
+
+		@Override
+		protected void expire(long now) {
+			fired.add(this);
+			if (action != null)
+				action.run();
+		}
+	}
+
+	@Test
+	public void firesDueTimeouts() {
+		TimerWheel wheel = new TimerWheel(8, TICK);
+		List<Recording> fired = new ArrayList<>();
+		long now = System.nanoTime();
+		Recording soon = new Recording(fired);
+		Recording later = new Recording(fired);
+		wheel.schedule(soon, now + TICK);
+		wheel.schedule(later, now + 100 * TICK);
+
+		wheel.advance(now + 5 * TICK);
+		assertEquals(1, fired.size());
+		assertFalse(soon.isScheduled());
+		assertTrue(later.isScheduled());
+		assertEquals(1, wheel.size());
+	}
+
+	@Test
+	public void firingMayCancelAnotherDueTimeout() {
+		final TimerWheel wheel = new TimerWheel(8, TICK);
+		List<Recording> fired = new ArrayList<>();
+		long now = System.nanoTime();
+		final Recording first = new Recording(fired);
+		final Recording second = new Recording(fired);
+		wheel.schedule(first, now + TICK);
+		wheel.schedule(second, now + TICK);
+
+		// Whichever fires first cancels the other
+		first.action = new Runnable() {
+			@Override
+			public void run() {
+				wheel.cancel(second);
+			}
+		};
+		second.action = new Runnable() {
+			@Override
+			public void run() {
+				wheel.cancel(first);
+			}
+		};
+
+		wheel.advance(now + 5 * TICK);
+		assertEquals(1, fired.size());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void firingMayRescheduleAnotherDueTimeout() {
+		final TimerWheel wheel = new TimerWheel(8, TICK);
+		List<Recording> fired = new ArrayList<>();
+		final long now = System.nanoTime();
+		final Recording first = new Recording(fired);
+		final Recording second = new Recording(fired);
+		wheel.schedule(first, now + TICK);
+		wheel.schedule(second, now + TICK);
+
+		first.action = new Runnable() {
+			@Override
+			public void run() {
+				wheel.schedule(second, now + 100 * TICK);
+			}
+		};
+		second.action = new Runnable() {
+			@Override
+			public void run() {
+				wheel.schedule(first, now + 100 * TICK);
+			}
+		};
+
+		wheel.advance(now + 5 * TICK);
+		assertEquals(1, fired.size());
+		assertEquals(1, wheel.size());
+		assertTrue(first.isScheduled() || second.isScheduled());
+	}
+}
@@ -0,0 +1,253 @@
+package rm.chat.shared;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import rm.chat.shared.Message.MessageType;
+
+/**
+ * Encoder and decoder for the binary protocol.
+ *
+ * A client picks the binary protocol by sending {@link #HELLO} as the very
+ * first byte on the connection; the server answers with a binary OK. A text
+ * line never starts with that byte, so text clients keep working on the
+ * same port.
+ *
+ * Every frame is a seven byte header followed by two UTF-8 fields:
+ * <pre>
+ *   u8   type, see {@link MessageType#getTag()}
+ *   u16  length of the user field
+ *   u32  length of the message field
+ *   user
+ *   message
+ * </pre>
+ * Since fields carry their length, nicks and messages may contain spaces
+ * or newlines. Clients send every line they type, commands included, as a
+ * MESSAGE frame with an empty user.
+ *
+ * The static methods encode; an instance decodes the frames of one
+ * connection, keeping a partial frame until the rest of it arrives. The
+ * buffers it keeps start small and grow with the frames, up to the
+ * maximum length.
+ */
+public class BinaryCodec {
+
+	/**
+	 * First byte sent by a client that wants the binary protocol.
+	 */
+	public static final byte HELLO = (byte) 0xB1;
+
+	public static final int HEADER_LENGTH = 7;
+
+	// Starting size of the buffers, grown as needed
+	private static final int INITIAL_SIZE = 256;
+
+	private final int maxLength;
+	private ByteBuffer pending;
+	private byte[] scratch;
+
+	// Input handed to the last feed, read up to its position
+	private ByteBuffer input;
+
+	/**
+	 * @param maxLength - longest frame accepted, header excluded
+	 */
+	public BinaryCodec(int maxLength) {
+		this.maxLength = maxLength;
+		this.pending = ByteBuffer.allocate(Math.min(INITIAL_SIZE, HEADER_LENGTH + maxLength));
+		this.scratch = new byte[0];
+	}
+
+	/**
+	 * Number of bytes a string takes in UTF-8.
+	 */
+	public static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private static void putUtf8(ByteBuffer out, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			} else {
+				if (Character.isSurrogate(c))
+					c = '?';
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Number of bytes a message takes once encoded.
+	 */
+	public static int encodedLength(Message message) {
+		return HEADER_LENGTH + utf8Length(message.getUser()) + utf8Length(message.getMessage());
+	}
+
+	/**
+	 * Encode a message into a buffer with at least
+	 * {@link #encodedLength(Message)} bytes remaining.
+	 *
+	 * @param message to encode
+	 * @param out - buffer to write to
+	 */
+	public static void encode(Message message, ByteBuffer out) {
+		String user = message.getUser();
+		String text = message.getMessage();
+		out.put(message.getType().getTag());
+		out.putShort((short) utf8Length(user));
+		out.putInt(utf8Length(text));
+		putUtf8(out, user);
+		putUtf8(out, text);
+	}
+
+	/**
+	 * Encode a message into a new buffer, ready to be written.
+	 */
+	public static ByteBuffer encode(Message message) {
+		ByteBuffer out = ByteBuffer.allocate(encodedLength(message));
+		encode(message, out);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Hand the codec bytes read from the network. The buffer is read by the
+	 * following calls to {@link #next()} and must not be reused until it
+	 * returns null.
+	 *
+	 * @param in - buffer ready to be read
+	 */
+	public void feed(ByteBuffer in) {
+		this.input = in;
+	}
+
+	/**
+	 * Get the next complete frame.
+	 *
+	 * @return the message, or null once the input is used up
+	 * @throws ProtocolException if the frame is malformed or too long,
+	 * after which the connection can't be trusted anymore
+	 */
+	public Message next() throws ProtocolException {
+		if (input == null)
+			return null;
+
+		if (pending.position() == 0) {
+			// Decode straight from the input if the whole frame is there
+			int length = frameLength(input, input.position(), input.remaining());
+			if (length > 0 && length <= input.remaining()) {
+				Message message = decode(input, input.position());
+				input.position(input.position() + length);
+				return message;
+			}
+		}
+
+		// Gather the frame in pending, header first
+		int needed = HEADER_LENGTH;
+		if (pending.position() >= HEADER_LENGTH)
+			needed = frameLength(pending, 0, pending.position());
+		while (true) {
+			if (needed > pending.capacity())
+				grow(needed);
+			int take = Math.min(needed - pending.position(), input.remaining());
+			for (int i = 0; i < take; i++)
+				pending.put(input.get());
+
+			if (pending.position() < needed) {
+				input = null;
+				return null;
+			}
+			if (needed == HEADER_LENGTH) {
+				needed = frameLength(pending, 0, HEADER_LENGTH);
+				if (needed > HEADER_LENGTH)
+					continue;
+			}
+			break;
+		}
+		Message message = decode(pending, 0);
+		pending.clear();
+		return message;
+	}
+
+	/**
+	 * Make room in pending for a frame of the given length, keeping what
+	 * it holds.
+	 */
+	private void grow(int needed) {
+		int size = pending.capacity();
+		while (size < needed)
+			size = size << 1;
+		ByteBuffer larger = ByteBuffer.allocate(Math.min(size, HEADER_LENGTH + maxLength));
+		pending.flip();
+		larger.put(pending);
+		pending = larger;
+	}
+
+	/**
+	 * Length of the frame starting at a given offset.
+	 *
+	 * @return the length, or 0 if the header isn't all there
+	 */
+	private int frameLength(ByteBuffer b, int offset, int available) throws ProtocolException {
+		if (available < HEADER_LENGTH)
+			return 0;
+		int userLength = b.getShort(offset + 1) & 0xFFFF;
+		int messageLength = b.getInt(offset + 3);
+		if (messageLength < 0 || (long) userLength + messageLength > maxLength)
+			throw new ProtocolException("Frame longer than " + maxLength + " bytes");
+		return HEADER_LENGTH + userLength + messageLength;
+	}
+
+	private Message decode(ByteBuffer b, int offset) throws ProtocolException {
+		MessageType type = MessageType.fromTag(b.get(offset));
+		if (type == null)
+			throw new ProtocolException("Unknown frame type " + b.get(offset));
+		int userLength = b.getShort(offset + 1) & 0xFFFF;
+		int messageLength = b.getInt(offset + 3);
+		String user = string(b, offset + HEADER_LENGTH, userLength);
+		String text = string(b, offset + HEADER_LENGTH + userLength, messageLength);
+		return new Message(type, user, text);
+	}
+
+	private String string(ByteBuffer b, int offset, int length) {
+		if (b.hasArray())
+			return new String(b.array(), b.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+
+		// Direct buffers are copied out first
+		if (length > scratch.length)
+			scratch = new byte[Math.min(Math.max(length, scratch.length << 1), maxLength)];
+		for (int i = 0; i < length; i++)
+			scratch[i] = b.get(offset + i);
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+}
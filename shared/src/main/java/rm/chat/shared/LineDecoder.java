@@ -0,0 +1,181 @@
+package rm.chat.shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a stream of bytes into newline terminated lines of UTF-8 text.
+ *
+ * One decoder is kept per connection. Bytes of an unfinished line are kept
+ * until the rest of it arrives, so a line or a multibyte character split
+ * across two reads comes out whole. Lines that arrive complete in a single
+ * read are decoded straight from the read buffer. The buffers holding a
+ * partial line and the decoded text start small and grow as longer lines
+ * come in, up to the maximum length, so an idle connection costs little.
+ */
+public class LineDecoder {
+
+	/**
+	 * Thrown when a line goes over the maximum length. The rest of that
+	 * line is skipped; the decoder can keep being used.
+	 */
+	public static class LineTooLongException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public LineTooLongException(int maxLength) {
+			super("Line longer than " + maxLength + " bytes");
+		}
+	}
+
+	// Starting size of the buffers, grown as needed
+	private static final int INITIAL_SIZE = 256;
+
+	private final int maxLength;
+	private final CharsetDecoder decoder;
+	private ByteBuffer pending;
+	private CharBuffer chars;
+
+	// Input handed to the last feed, read up to its position
+	private ByteBuffer input;
+
+	// Skipping the rest of an overlong line
+	private boolean discarding;
+
+	/**
+	 * @param maxLength - longest line accepted, in bytes
+	 */
+	public LineDecoder(int maxLength) {
+		this.maxLength = maxLength;
+		this.decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.pending = ByteBuffer.allocate(Math.min(INITIAL_SIZE, maxLength));
+		this.chars = CharBuffer.allocate(Math.min(INITIAL_SIZE, maxLength));
+		this.discarding = false;
+	}
+
+	public int getMaxLength() {
+		return this.maxLength;
+	}
+
+	/**
+	 * Hand the decoder bytes read from the network. The buffer is read by
+	 * the following calls to {@link #nextLine()} and must not be reused
+	 * until it returns null.
+	 *
+	 * @param in - buffer ready to be read
+	 */
+	public void feed(ByteBuffer in) {
+		this.input = in;
+	}
+
+	/**
+	 * Get the next complete line, without its terminator.
+	 *
+	 * @return the line, or null once the input is used up
+	 * @throws LineTooLongException if a line goes over the maximum length
+	 */
+	public String nextLine() throws LineTooLongException {
+		while (input != null) {
+			int start = input.position();
+			int limit = input.limit();
+			int end = start;
+			while (end < limit && input.get(end) != '\n')
+				end++;
+
+			if (end == limit) {
+				// No terminator yet, keep what we have for the next read
+				ByteBuffer in = input;
+				in.position(limit);
+				input = null;
+				if (!discarding && !append(in, start, limit)) {
+					discarding = true;
+					throw new LineTooLongException(maxLength);
+				}
+				return null;
+			}
+
+			input.position(end + 1);
+			if (discarding) {
+				// Reached the end of an overlong line
+				discarding = false;
+				continue;
+			}
+
+			if (pending.position() == 0) {
+				if (end - start > maxLength)
+					throw new LineTooLongException(maxLength);
+				return decode(input, start, end);
+			}
+
+			if (!append(input, start, end))
+				throw new LineTooLongException(maxLength);
+			pending.flip();
+			String line = decode(pending, 0, pending.limit());
+			pending.clear();
+			return line;
+		}
+		return null;
+	}
+
+	/**
+	 * Keep bytes of an unfinished line.
+	 *
+	 * @return False if the line no longer fits, in which case
+	 * everything kept so far is dropped
+	 */
+	private boolean append(ByteBuffer in, int from, int to) {
+		int needed = pending.position() + to - from;
+		if (needed > maxLength) {
+			pending.clear();
+			return false;
+		}
+		if (needed > pending.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(grow(pending.capacity(), needed));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		ByteBuffer part = in.duplicate();
+		part.limit(to).position(from);
+		pending.put(part);
+		return true;
+	}
+
+	private String decode(ByteBuffer src, int from, int to) {
+		if (to > from && src.get(to - 1) == '\r')
+			to--;
+
+		int position = src.position();
+		int limit = src.limit();
+		src.limit(to).position(from);
+
+		// UTF-8 never decodes to more chars than it has bytes
+		if (to - from > chars.capacity())
+			chars = CharBuffer.allocate(grow(chars.capacity(), to - from));
+
+		chars.clear();
+		decoder.reset();
+		decoder.decode(src, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+
+		src.limit(limit).position(position);
+		return chars.toString();
+	}
+
+	/**
+	 * Double a capacity until it holds what is needed, without going over
+	 * the maximum length.
+	 */
+	private int grow(int capacity, int needed) {
+		int size = Math.max(capacity, 1);
+		while (size < needed)
+			size = size << 1;
+		return Math.min(size, Math.max(needed, maxLength));
+	}
+}
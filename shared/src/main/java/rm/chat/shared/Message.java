@@ -0,0 +1,265 @@
+package rm.chat.shared;
+
+
+/**
+ * Represents a message sent from the server to the client.
+ */
+public class Message {
+	
+	/**
+	 * The different types of message
+	 */
+	public enum MessageType {
+		/**
+		 * Last command sent by the client was successful.
+		 */
+		OK(1),
+		/**
+		 * Last command send by the client was unsuccessful.
+		 */
+		ERROR(2),
+		/**
+		 * Message from another client.
+		 */
+		MESSAGE(3),
+		/**
+		 * A user in the same room changed their name.
+		 */
+		NEWNICK(4),
+		/**
+		 * A user joined the room.
+		 */
+		JOINED(5),
+		/**
+		 * A user left the room.
+		 */
+		LEFT(6),
+		/**
+		 * Confirm a user's exit command.
+		 */
+		BYE(7),
+		/**
+		 * Private message
+		 */
+		PRIV(8),
+		/**
+		 * The server checking the client is still there. Answered with
+		 * an empty line.
+		 */
+		PING(9);
+
+		private final byte tag;
+
+		private MessageType(int tag) {
+			this.tag = (byte) tag;
+		}
+
+		/**
+		 * The byte identifying this type in the binary protocol.
+		 */
+		public byte getTag() {
+			return this.tag;
+		}
+
+		/**
+		 * Find the type with the given binary protocol tag.
+		 * @param tag
+		 * @return the type, or null if the tag is unknown
+		 */
+		public static MessageType fromTag(byte tag) {
+			if (tag < 0 || tag >= byTag.length)
+				return null;
+			return byTag[tag];
+		}
+
+		private static final MessageType[] byTag = new MessageType[10];
+		static {
+			for (MessageType type : values())
+				byTag[type.tag] = type;
+		}
+	}
+	
+	private MessageType type;
+	private String message;
+	private String username;
+
+	public Message(MessageType type) {
+		this.type = type;
+		this.username = "";
+		this.message = "";
+	}
+	
+	public Message(MessageType type, String message) {
+		this.type = type;
+		this.username = "";
+		this.message = message;
+	}
+	
+	public Message(MessageType type, String username, String message) {
+		this.type = type;
+		this.username = username;
+		this.message = message;
+	}
+
+	public Message(String message) {
+		this.type = MessageType.MESSAGE;
+		this.username = "";
+		this.message = message;
+	}
+	
+	public Message(String username, String message) {
+		this.type = MessageType.MESSAGE;
+		this.username = username;
+		this.message = message;
+	}
+
+	public MessageType getType() {
+		return type;
+	}
+
+	void setType(MessageType type) {
+		this.type = type;
+	}
+
+	public String getMessage() {
+		return this.message;
+	}
+
+	public String getUser() {
+		return this.username;
+	}
+
+	void setMessage(String message) {
+		this.message = message;
+	}
+	
+	public static Message errorMessage() {
+		return new Message(MessageType.ERROR);
+	}
+
+	public static Message okMessage() {
+		return new Message(MessageType.OK);
+	}
+
+	public static Message joinMessage(String name) {
+		return new Message(MessageType.JOINED, name);
+	}
+
+	public static Message leaveMessage(String name) {
+		return new Message(MessageType.LEFT, name);
+	}
+
+	public boolean isError() {
+		return this.type == MessageType.ERROR;
+	}
+
+	/**isCommand
+	 * Test if a message is a command
+	 * @param message
+	 * @return
+	 */
+	public boolean isCommand() {
+		return isCommand(this.message);
+	}
+
+	/**
+	 * Test if a line is a command, without making a message of it
+	 * @param line - trimmed, not empty
+	 * @return
+	 */
+	public static boolean isCommand(String line) {
+		return (line.charAt(0) == '/' 
+			&& line.length() > 1 
+			&& line.charAt(1) != '/');
+	}
+
+	/**
+	 * Clean up a message by removing escape characters
+	 * @param message
+	 * @return
+	 */
+	public String clean() {
+		message = unescape(message);
+		return message;
+	}
+
+	/**
+	 * Remove the escape character of a line that isn't a command
+	 * @param line - trimmed, not empty
+	 * @return the line itself if it wasn't escaped
+	 */
+	public static String unescape(String line) {
+		if (line.charAt(0) == '/' && line.length() > 1 && line.charAt(1) == '/')
+			return line.substring(1);
+		return line;
+	}
+
+	public void log() {
+		System.out.println(this.username + ": " + this.message);
+	}
+
+	public String[] getArgs() {
+		return this.message.split(" ");
+	}
+
+	/**
+	 * Read a message from a line sent by the server in the text protocol
+	 * @param line - without its terminator
+	 * @return the message
+	 */
+	public static Message fromLine(String line) {
+		int first = line.indexOf(' ');
+		String command = first < 0 ? line : line.substring(0, first);
+		String rest = first < 0 ? "" : line.substring(first + 1);
+		int second = rest.indexOf(' ');
+		switch(command) {
+			case "OK":
+				return new Message(MessageType.OK);
+			case "ERROR":
+				return new Message(MessageType.ERROR);
+			case "BYE": 
+				return new Message(MessageType.BYE);
+			case "PING":
+				return new Message(MessageType.PING);
+			case "NEWNICK":
+				// NEWNICK <old> <new>
+				return new Message(MessageType.NEWNICK, 
+					second < 0 ? "" : rest.substring(second + 1), 
+					second < 0 ? rest : rest.substring(0, second));
+			case "JOINED":
+				return new Message(MessageType.JOINED, rest);
+			case "LEFT":
+				return new Message(MessageType.LEFT, rest);
+			default:
+				// MESSAGE <user> <text>
+				return new Message(MessageType.MESSAGE, 
+					second < 0 ? rest : rest.substring(0, second), 
+					second < 0 ? "" : rest.substring(second + 1));
+		}
+	}
+
+	/**
+	 * Text to show the user for this message
+	 * @return the text, or null if there is nothing to show
+	 */
+	public String display() {
+		switch(this.type) {
+			case NEWNICK:
+				return String.format("%s changed username to %s\n", this.message, this.username);
+			case JOINED:
+				return String.format("%s joined the room\n", this.message);
+			case LEFT:
+				return String.format("%s left the room\n", this.message);
+			case MESSAGE:
+			case PRIV:
+				return String.format("%s: %s\n", this.username, this.message);
+			default:
+				return null;
+		}
+	}
+
+	public static String parse(String message) {
+		return fromLine(message).display();
+	}
+
+}
@@ -0,0 +1,15 @@
+package rm.chat.shared;
+
+/**
+ * The wire protocols a connection can speak.
+ */
+public enum Protocol {
+	/**
+	 * Newline terminated lines of text, the default.
+	 */
+	TEXT,
+	/**
+	 * Length prefixed binary frames, see {@link BinaryCodec}.
+	 */
+	BINARY
+}